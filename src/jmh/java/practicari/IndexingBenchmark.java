@@ -0,0 +1,83 @@
+package practicari;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construcción de los documentos Lucene de {@link IndexTrecCovid} y throughput de addDocument, en documentos
+ * por segundo, sobre un índice en memoria para no medir el disco.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IndexingBenchmark {
+    private static final int BATCH = 1000;
+
+    private List<Doc> docs;
+    private int next;
+    private Directory dir;
+    private IndexWriter writer;
+
+    @Setup(Level.Trial)
+    public void generateCorpus() {
+        docs = new SyntheticCorpus(42, 10000, 0).docs();
+    }
+
+    // un índice nuevo en cada iteración, para que no crezca durante toda la medida
+    @Setup(Level.Iteration)
+    public void openWriter() throws IOException {
+        dir = new ByteBuffersDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setSimilarity(new BM25Similarity(1.2f, 0.75f));
+        writer = new IndexWriter(dir, iwc);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriter() throws IOException {
+        writer.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public Document createDocument() {
+        return IndexTrecCovid.createDocument(nextDoc());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addDocument() throws IOException {
+        for (int i = 0; i < BATCH; i++)
+            writer.addDocument(IndexTrecCovid.createDocument(nextDoc()));
+    }
+
+    private Doc nextDoc() {
+        Doc doc = docs.get(next);
+        next = (next + 1) % docs.size();
+        return doc;
+    }
+}
@@ -0,0 +1,104 @@
+package practicari;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Métricas de una query sobre un ranking de 1000 documentos: las de {@link TrainingTestTrecCovid} en un corte
+ * y todas las del {@link Evaluator} en los cortes de trec_eval. Los documentos del ranking son ordinales de los
+ * juicios, así que no hace falta índice.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetricsBenchmark {
+    private static final int DEPTH = 1000;
+
+    // Métrica y corte de la opción -metrica de TrainingTestTrecCovid
+    @State(Scope.Benchmark)
+    public static class Metric {
+        @Param({"P", "R", "MAP", "MRR"})
+        public String name;
+
+        @Param({"10", "100"})
+        public int cut;
+    }
+
+    private ResolvedQrels.Judgments[] judgments;
+    private ScoreDoc[][] rankings;
+    private Evaluator evaluator;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void generateRankings() throws IOException {
+        Path tsv = Files.createTempFile("qrels", ".tsv");
+        try {
+            new SyntheticCorpus(42, 20000, 50).writeQrels(tsv);
+            Qrels qrels = Qrels.parse(tsv.toFile());
+            judgments = new ResolvedQrels.Judgments[qrels.numQueries()];
+            rankings = new ScoreDoc[qrels.numQueries()][];
+            // rankings con juzgados de la query, juzgados de otras queries y sin juzgar (-1) mezclados
+            Random random = new Random(42);
+            for (int q = 0; q < qrels.numQueries(); q++) {
+                judgments[q] = ResolvedQrels.Judgments.forOrdinals(qrels, qrels.queryId(q));
+                rankings[q] = new ScoreDoc[DEPTH];
+                int start = qrels.start(q);
+                int judged = qrels.end(q) - start;
+                for (int i = 0; i < DEPTH; i++) {
+                    int kind = random.nextInt(4);
+                    int doc = -1;
+                    if (kind == 0)
+                        doc = qrels.docOrd(start + random.nextInt(judged));
+                    else if (kind == 1)
+                        doc = random.nextInt(qrels.numDocIds());
+                    rankings[q][i] = new ScoreDoc(doc, DEPTH - i);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tsv);
+        }
+        evaluator = new Evaluator(new int[]{5, 10, 15, 20, 30, 100, 200, 500, 1000});
+    }
+
+    @Benchmark
+    public double computeMetric(Metric metric) {
+        int q = nextQuery();
+        List<ScoreDoc> scoreDocs = List.of(Arrays.copyOf(rankings[q], metric.cut));
+        return TrainingTestTrecCovid.computeMetric(metric.name, scoreDocs, judgments[q], metric.cut,
+                judgments[q].numRelevant());
+    }
+
+    @Benchmark
+    public double[] evaluateAll() {
+        int q = nextQuery();
+        return evaluator.evaluate(rankings[q], judgments[q]);
+    }
+
+    private int nextQuery() {
+        int q = next;
+        next = (next + 1) % rankings.length;
+        return q;
+    }
+}
@@ -0,0 +1,59 @@
+package practicari;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carga de los juicios de relevancia: parseo del tsv y carga del fichero binario que {@link Qrels#load}
+ * guarda junto a él. Los juicios sintéticos tienen un tamaño parecido al test.tsv de TREC-COVID.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QrelsBenchmark {
+    private Path dir;
+    private Path tsv;
+
+    @Setup(Level.Trial)
+    public void writeQrels() throws IOException {
+        dir = Files.createTempDirectory("qrels");
+        tsv = dir.resolve("test.tsv");
+        new SyntheticCorpus(42, 200000, 330).writeQrels(tsv);
+        Qrels.load(tsv.toFile());       // crea el fichero binario
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteQrels() throws IOException {
+        Files.deleteIfExists(Path.of(tsv + Qrels.BINARY_SUFFIX));
+        Files.deleteIfExists(tsv);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public Qrels parseTsv() throws IOException {
+        return Qrels.parse(tsv.toFile());
+    }
+
+    @Benchmark
+    public Qrels loadBinary() throws IOException {
+        return Qrels.load(tsv.toFile());
+    }
+}
@@ -0,0 +1,102 @@
+package practicari;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencia de una búsqueda de {@link SearchEvalTrecCovid} (top 100) con BM25 y Jelinek-Mercer para varios
+ * valores del parámetro. El índice se construye con la misma similitud, como hace {@link IndexTrecCovid}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchBenchmark {
+    private static final int TOP = 100;
+
+    // modelo y valor del parámetro, como en la opción -search
+    @Param({"bm25 0.6", "bm25 1.2", "bm25 2.0", "jm 0.1", "jm 0.4", "jm 0.7"})
+    public String model;
+
+    private Directory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Query[] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildIndex() throws IOException, ParseException {
+        SyntheticCorpus corpus = new SyntheticCorpus(42, 20000, 50);
+        Similarity similarity = similarity(model);
+        Analyzer analyzer = new StandardAnalyzer();
+
+        dir = new ByteBuffersDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+        iwc.setSimilarity(similarity);
+        try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+            for (Doc doc : corpus.docs())
+                writer.addDocument(IndexTrecCovid.createDocument(doc));
+        }
+
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+
+        List<QueryJsonl> queryList = corpus.queries();
+        queries = new Query[queryList.size()];
+        QueryParser parser = new QueryParser("text", analyzer);
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = parser.parse(queryList.get(i).metadata().query());
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        Query query = queries[next];
+        next = (next + 1) % queries.length;
+        return searcher.search(query, TOP);
+    }
+
+    private static Similarity similarity(String model) {
+        String[] parts = model.split(" ");
+        float value = Float.parseFloat(parts[1]);
+        return parts[0].equals("jm") ? new LMJelinekMercerSimilarity(value) : new BM25Similarity(value, 0.75f);
+    }
+}
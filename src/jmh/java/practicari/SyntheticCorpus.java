@@ -0,0 +1,138 @@
+package practicari;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Corpus sintético con la forma de TREC-COVID (documentos, queries y juicios de relevancia), generado con una
+ * semilla fija para que los benchmarks se puedan ejecutar sin descargar el corpus real.
+ *
+ * Las palabras siguen una distribución de Zipf sobre un vocabulario con algunos términos del dominio, y los
+ * documentos juzgados de cada query comparten sus términos para que las búsquedas encuentren relevantes.
+ */
+public class SyntheticCorpus {
+    private static final String[] TOPIC_TERMS = {"covid", "sars", "cov", "coronavirus", "vaccine", "mask",
+            "trial", "virus", "clinical", "transmission", "infection", "respiratory", "antibody", "patients",
+            "pandemic", "immune", "spike", "protein", "hospital", "symptoms"};
+    private static final int VOCABULARY = 5000;
+    // documentos juzgados por query y parte de ellos que contiene los términos de la query
+    private static final int JUDGED_PER_QUERY = 200;
+
+    private final Random random;
+    private final String[] vocabulary = new String[VOCABULARY];
+    private final double[] cumulative = new double[VOCABULARY];
+    private final List<Doc> docs = new ArrayList<>();
+    private final List<QueryJsonl> queries = new ArrayList<>();
+    private final StringBuilder qrels = new StringBuilder("query-id\tcorpus-id\tscore\n");
+
+    public SyntheticCorpus(long seed, int numDocs, int numQueries) {
+        random = new Random(seed);
+        double total = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            vocabulary[i] = i < TOPIC_TERMS.length ? TOPIC_TERMS[i] : "w" + i;
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < VOCABULARY; i++)
+            cumulative[i] /= total;
+
+        for (int d = 0; d < numDocs; d++) {
+            String id = String.format("d%06d", d);
+            docs.add(new Doc(id, words(5 + random.nextInt(8)), words(80 + random.nextInt(170)),
+                    new Doc.Metadata("https://example.org/" + id,
+                            random.nextInt(5) == 0 ? "" : String.valueOf(30000000 + random.nextInt(5000000)))));
+        }
+
+        for (int q = 1; q <= numQueries && numDocs > 0; q++) {
+            String query = TOPIC_TERMS[random.nextInt(TOPIC_TERMS.length)] + " "
+                    + TOPIC_TERMS[random.nextInt(TOPIC_TERMS.length)] + " " + words(2);
+            queries.add(new QueryJsonl(q, "t", new QueryJsonl.Metadata(query, "n")));
+            for (int j = 0; j < Math.min(JUDGED_PER_QUERY, numDocs); j++) {
+                int d = random.nextInt(numDocs);
+                int grade = random.nextInt(10) < 6 ? 0 : 1 + random.nextInt(2);
+                if (grade > 0) {
+                    // los relevantes llevan los términos de la query en el texto
+                    Doc doc = docs.get(d);
+                    docs.set(d, new Doc(doc.id(), doc.title(), doc.text() + " " + query, doc.metadata()));
+                }
+                qrels.append(q).append('\t').append(docs.get(d).id()).append('\t').append(grade).append('\n');
+            }
+        }
+    }
+
+    public List<Doc> docs() {
+        return docs;
+    }
+
+    public List<QueryJsonl> queries() {
+        return queries;
+    }
+
+    // Escribe los juicios como el test.tsv de TREC-COVID
+    public void writeQrels(Path file) throws IOException {
+        Files.writeString(file, qrels, StandardCharsets.UTF_8);
+    }
+
+    // Escribe corpus.jsonl, queries.jsonl y qrels/test.tsv en la carpeta, con la estructura de TREC-COVID
+    public void write(Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("qrels"));
+        JsonMapper mapper = JsonMapper.builder().build();
+        try (SequenceWriter writer = mapper.writer().withRootValueSeparator("\n")
+                .writeValues(dir.resolve("corpus.jsonl").toFile())) {
+            writer.writeAll(docs);
+        }
+        try (PrintWriter writer = new PrintWriter(dir.resolve("queries.jsonl").toFile(), StandardCharsets.UTF_8)) {
+            for (QueryJsonl query : queries)
+                writer.println(mapper.writeValueAsString(query));
+        }
+        writeQrels(dir.resolve("qrels").resolve("test.tsv"));
+    }
+
+    private String words(int n) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                text.append(' ');
+            text.append(vocabulary[word()]);
+        }
+        return text.toString();
+    }
+
+    private int word() {
+        double u = random.nextDouble();
+        int lo = 0;
+        int hi = VOCABULARY - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < u)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // Genera el corpus en una carpeta para usarlo con las herramientas de línea de comandos
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Uso: java SyntheticCorpus <carpeta> [documentos] [queries]");
+            System.exit(1);
+        }
+        int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        new SyntheticCorpus(42, numDocs, numQueries).write(Paths.get(args[0]));
+        System.out.println("Corpus sintético de " + numDocs + " documentos y " + numQueries + " queries en "
+                + new File(args[0]).getAbsolutePath());
+    }
+}
@@ -0,0 +1,306 @@
+package practicari;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.HitQueue;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.SmallFloat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Candidatos de una query con las estadísticas necesarias para puntuarlos sin volver a buscar en el índice:
+ * la frecuencia de cada término en cada documento, la norma (longitud codificada) del documento y las
+ * estadísticas de términos y de colección.
+ *
+ * Se recogen en una sola pasada por los postings y después se puntúan en memoria con las fórmulas de
+ * {@link BM25Similarity} y {@link LMJelinekMercerSimilarity} tal y como las calcula Lucene, de forma que el
+ * ranking para cada valor de k1/b/lambda es el mismo que devolvería {@link IndexSearcher#search(Query, int)}.
+ */
+public class CandidateRescorer {
+    // longitudes de documento que representa cada byte de norma, igual que en las similitudes de Lucene
+    private static final float[] LENGTH_TABLE = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++)
+            LENGTH_TABLE[i] = SmallFloat.byte4ToInt((byte) i);
+    }
+
+    private final float[] boosts;          // peso de cada término en la query
+    private final long[] docFreqs;
+    private final long[] totalTermFreqs;
+    private final long docCount;
+    private final long sumTotalTermFreq;
+    private final int[] docs;              // ids globales de los candidatos, en orden creciente
+    private final byte[] norms;            // norma de cada candidato
+    private final float[][] freqs;         // [término][candidato], 0 si el término no aparece
+
+    private CandidateRescorer(float[] boosts, long[] docFreqs, long[] totalTermFreqs, long docCount,
+                              long sumTotalTermFreq, int[] docs, byte[] norms, float[][] freqs) {
+        this.boosts = boosts;
+        this.docFreqs = docFreqs;
+        this.totalTermFreqs = totalTermFreqs;
+        this.docCount = docCount;
+        this.sumTotalTermFreq = sumTotalTermFreq;
+        this.docs = docs;
+        this.norms = norms;
+        this.freqs = freqs;
+    }
+
+    /**
+     * Recoge los candidatos de la query. Devuelve null si la query no es una disyunción de términos de un
+     * mismo campo (por ejemplo, una frase), en cuyo caso hay que buscar con el {@link IndexSearcher}.
+     */
+    public static CandidateRescorer collect(IndexSearcher searcher, Query query) throws IOException {
+        List<Term> terms = new ArrayList<>();
+        List<Float> termBoosts = new ArrayList<>();
+        if (!extractTerms(searcher.rewrite(query), 1f, terms, termBoosts))
+            return null;
+
+        String field = terms.isEmpty() ? null : terms.get(0).field();
+        for (Term term : terms) {
+            if (!term.field().equals(field))
+                return null;
+        }
+
+        IndexReader reader = searcher.getIndexReader();
+        int numTerms = terms.size();
+        long[] docFreqs = new long[numTerms];
+        long[] totalTermFreqs = new long[numTerms];
+        CollectionStatistics collectionStats = field == null ? null : searcher.collectionStatistics(field);
+
+        // postings de cada término, concatenados segmento a segmento (los ids globales quedan ordenados)
+        int[][] termDocs = new int[numTerms][];
+        float[][] termFreqs = new float[numTerms][];
+        int[] termSizes = new int[numTerms];
+        for (int t = 0; t < numTerms; t++) {
+            termDocs[t] = new int[16];
+            termFreqs[t] = new float[16];
+        }
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms leafTerms = field == null ? null : leaf.reader().terms(field);
+            if (leafTerms == null)
+                continue;
+            TermsEnum termsEnum = leafTerms.iterator();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+
+            for (int t = 0; t < numTerms; t++) {
+                if (!termsEnum.seekExact(terms.get(t).bytes()))
+                    continue;
+                docFreqs[t] += termsEnum.docFreq();
+                totalTermFreqs[t] += termsEnum.totalTermFreq();
+
+                PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs != null && !liveDocs.get(doc))
+                        continue;
+                    if (termSizes[t] == termDocs[t].length) {
+                        termDocs[t] = Arrays.copyOf(termDocs[t], termSizes[t] * 2);
+                        termFreqs[t] = Arrays.copyOf(termFreqs[t], termSizes[t] * 2);
+                    }
+                    termDocs[t][termSizes[t]] = leaf.docBase + doc;
+                    termFreqs[t][termSizes[t]] = postings.freq();
+                    termSizes[t]++;
+                }
+            }
+        }
+
+        // unión de los postings: los candidatos son los documentos con al menos un término
+        int total = 0;
+        for (int size : termSizes)
+            total += size;
+        int[] docs = new int[total];
+        int numDocs = 0;
+        for (int t = 0; t < numTerms; t++) {
+            System.arraycopy(termDocs[t], 0, docs, numDocs, termSizes[t]);
+            numDocs += termSizes[t];
+        }
+        Arrays.sort(docs);
+        int unique = 0;
+        for (int i = 0; i < docs.length; i++) {
+            if (unique == 0 || docs[i] != docs[unique - 1])
+                docs[unique++] = docs[i];
+        }
+        docs = Arrays.copyOf(docs, unique);
+
+        float[][] freqs = new float[numTerms][unique];
+        for (int t = 0; t < numTerms; t++) {
+            int pos = 0;
+            for (int i = 0; i < termSizes[t]; i++) {
+                pos = Arrays.binarySearch(docs, pos, unique, termDocs[t][i]);
+                freqs[t][pos] = termFreqs[t][i];
+            }
+        }
+
+        byte[] norms = readNorms(reader, field, docs);
+        float[] boosts = new float[numTerms];
+        for (int t = 0; t < numTerms; t++)
+            boosts[t] = termBoosts.get(t);
+
+        return new CandidateRescorer(boosts, docFreqs, totalTermFreqs,
+                collectionStats == null ? 0 : collectionStats.docCount(),
+                collectionStats == null ? 0 : collectionStats.sumTotalTermFreq(), docs, norms, freqs);
+    }
+
+    // Términos de una disyunción de TermQuery (con o sin boost); false si la query tiene otra forma
+    private static boolean extractTerms(Query query, float boost, List<Term> terms, List<Float> boosts) {
+        if (query instanceof TermQuery) {
+            terms.add(((TermQuery) query).getTerm());
+            boosts.add(boost);
+            return true;
+        } else if (query instanceof BoostQuery) {
+            BoostQuery boostQuery = (BoostQuery) query;
+            return boost == 1f && boostQuery.getQuery() instanceof TermQuery
+                    && extractTerms(boostQuery.getQuery(), boostQuery.getBoost(), terms, boosts);
+        } else if (query instanceof BooleanQuery) {
+            BooleanQuery booleanQuery = (BooleanQuery) query;
+            if (booleanQuery.getMinimumNumberShouldMatch() > 0)
+                return false;
+            for (BooleanClause clause : booleanQuery.clauses()) {
+                if (clause.getOccur() != BooleanClause.Occur.SHOULD || clause.getQuery() instanceof BooleanQuery)
+                    return false;
+                if (!extractTerms(clause.getQuery(), 1f, terms, boosts))
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static byte[] readNorms(IndexReader reader, String field, int[] docs) throws IOException {
+        byte[] norms = new byte[docs.length];
+        List<LeafReaderContext> leaves = reader.leaves();
+        int leafIndex = -1;
+        int leafEnd = 0;
+        int docBase = 0;
+        NumericDocValues leafNorms = null;
+
+        // los candidatos están ordenados, así que recorremos los segmentos una sola vez
+        for (int i = 0; i < docs.length; i++) {
+            while (docs[i] >= leafEnd) {
+                LeafReaderContext leaf = leaves.get(++leafIndex);
+                docBase = leaf.docBase;
+                leafEnd = docBase + leaf.reader().maxDoc();
+                leafNorms = leaf.reader().getNormValues(field);
+            }
+            if (leafNorms != null && leafNorms.advanceExact(docs[i] - docBase))
+                norms[i] = (byte) leafNorms.longValue();
+        }
+        return norms;
+    }
+
+    public int numCandidates() {
+        return docs.length;
+    }
+
+    /**
+     * Los n mejores candidatos con la similitud indicada, ordenados como en {@link IndexSearcher#search}:
+     * por puntuación descendente y, a igualdad, por id de documento.
+     */
+    public ScoreDoc[] topDocs(Similarity similarity, int n) {
+        float[] scores;
+        if (similarity instanceof BM25Similarity) {
+            BM25Similarity bm25 = (BM25Similarity) similarity;
+            scores = scoreBM25(bm25.getK1(), bm25.getB());
+        } else if (similarity instanceof LMJelinekMercerSimilarity) {
+            scores = scoreJM(((LMJelinekMercerSimilarity) similarity).getLambda());
+        } else {
+            throw new IllegalArgumentException("Similitud no soportada: " + similarity);
+        }
+        return top(scores, n);
+    }
+
+    // BM25Similarity: weight - weight / (1 + freq / (k1 * (1 - b + b * dl / avgdl))), con weight = boost * idf
+    private float[] scoreBM25(float k1, float b) {
+        float avgdl = (float) (sumTotalTermFreq / (double) docCount);
+        float[] cache = new float[256];
+        for (int i = 0; i < cache.length; i++)
+            cache[i] = 1f / (k1 * ((1 - b) + b * LENGTH_TABLE[i] / avgdl));
+
+        float[] weights = new float[boosts.length];
+        for (int t = 0; t < boosts.length; t++) {
+            float idf = (float) Math.log(1 + (docCount - docFreqs[t] + 0.5D) / (docFreqs[t] + 0.5D));
+            weights[t] = boosts[t] * idf;
+        }
+
+        float[] scores = new float[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            float normInverse = cache[norms[i] & 0xFF];
+            double score = 0;
+            for (int t = 0; t < weights.length; t++) {
+                float freq = freqs[t][i];
+                if (freq > 0)
+                    score += weights[t] - weights[t] / (1f + freq * normInverse);
+            }
+            scores[i] = (float) score;
+        }
+        return scores;
+    }
+
+    // LMJelinekMercerSimilarity: boost * log(1 + ((1 - lambda) * freq / dl) / (lambda * P(t|C)))
+    private float[] scoreJM(float lambda) {
+        double[] collectionProbabilities = new double[boosts.length];
+        for (int t = 0; t < boosts.length; t++)
+            collectionProbabilities[t] = (totalTermFreqs[t] + 1D) / (sumTotalTermFreq + 1D);
+
+        float[] scores = new float[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            double docLen = LENGTH_TABLE[norms[i] & 0xFF];
+            double score = 0;
+            for (int t = 0; t < boosts.length; t++) {
+                float freq = freqs[t][i];
+                if (freq > 0) {
+                    score += (float) (boosts[t] * Math.log(1 + ((1 - lambda) * (double) freq / docLen)
+                            / (lambda * collectionProbabilities[t])));
+                }
+            }
+            scores[i] = (float) score;
+        }
+        return scores;
+    }
+
+    private ScoreDoc[] top(float[] scores, int n) {
+        int size = Math.min(n, docs.length);
+        if (size <= 0)
+            return new ScoreDoc[0];
+
+        // misma cola que usa el colector de Lucene: en caso de empate se queda el documento con menor id
+        HitQueue queue = new HitQueue(size, true);
+        ScoreDoc top = queue.top();
+        for (int i = 0; i < docs.length; i++) {
+            if (scores[i] > top.score || (scores[i] == top.score && docs[i] < top.doc)) {
+                top.doc = docs[i];
+                top.score = scores[i];
+                top = queue.updateTop();
+            }
+        }
+
+        ScoreDoc[] result = new ScoreDoc[size];
+        for (int i = size - 1; i >= 0; i--) {
+            ScoreDoc scoreDoc = queue.pop();
+            result[i] = new ScoreDoc(scoreDoc.doc, scoreDoc.score);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,330 @@
+package practicari;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Lectura del corpus en JSONL para la indexación. El corpus puede ser un único fichero (corpus.jsonl o
+ * corpus.jsonl.gz) o varios ficheros de partes, y se parsea en paralelo: el hilo que llama trocea la entrada
+ * en bloques de líneas completas y varios hilos parsean los bloques a {@link Doc}.
+ *
+ * Los ficheros sin comprimir se mapean en memoria y se cortan en bloques por saltos de línea sin copiarlos;
+ * los comprimidos se descomprimen en streaming. Con un único hilo de parseo los documentos se entregan en el
+ * orden del corpus.
+ *
+ * Entre bloques se pueden hacer puntos de control: el lector espera a que los hilos de parseo entreguen todo
+ * lo leído y pasa la posición desde la que seguir, que después se puede usar para retomar la lectura.
+ */
+public class CorpusReader {
+    public static final String CORPUS_NAME = "corpus";
+    private static final String JSONL_SUFFIX = ".jsonl";
+    // tamaño aproximado de cada bloque de líneas que parsea un hilo
+    private static final int CHUNK_SIZE = 8 << 20;
+    // marca de fin de la cola para que los hilos de parseo terminen
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    // marca para que los hilos de parseo entreguen su lote a medias antes de un punto de control
+    private static final ByteBuffer FLUSH = ByteBuffer.allocate(0);
+
+    // Recibe los lotes de documentos parseados; lo llaman a la vez todos los hilos de parseo
+    public interface BatchHandler {
+        void accept(List<Doc> batch) throws IOException;
+
+        // Bytes de cada bloque ya parseado, para medir el ritmo de parseo
+        default void parsed(long bytes) {
+        }
+    }
+
+    /**
+     * Puntos de control de la lectura. Después de cada bloque se pregunta si toca uno, con las líneas leídas
+     * hasta el final del bloque; si es así, se llama a checkpoint cuando ya se han entregado todos los
+     * documentos anteriores a la posición y antes de leer ninguno posterior.
+     */
+    public interface Checkpoints {
+        boolean due(long linesRead);
+
+        void checkpoint(Position next) throws IOException;
+    }
+
+    // Posición en el corpus: índice del fichero y byte (descomprimido) en el que empieza la siguiente línea
+    public record Position(int file, long offset) {
+        public static final Position START = new Position(0, 0);
+    }
+
+    private final ObjectReader reader = JsonMapper.builder().findAndAddModules().build().readerFor(Doc.class);
+    private final int batchSize;
+    private final BatchHandler handler;
+    private final Checkpoints checkpoints;
+    private final BlockingQueue<ByteBuffer> chunks;
+    private final Thread[] parsers;
+    // los hilos de parseo y el lector se esperan aquí en cada punto de control
+    private final CyclicBarrier flushed;
+    // líneas de los bloques encolados, que se cuentan sólo con puntos de control
+    private long linesRead;
+    private volatile Exception failure;
+
+    private CorpusReader(int numThreads, int batchSize, BatchHandler handler, Checkpoints checkpoints) {
+        this.batchSize = batchSize;
+        this.handler = handler;
+        this.checkpoints = checkpoints;
+        this.chunks = new ArrayBlockingQueue<>(2 * numThreads);
+        this.parsers = new Thread[numThreads];
+        this.flushed = new CyclicBarrier(numThreads + 1);
+    }
+
+    /**
+     * Ficheros del corpus en la carpeta de documentos, en orden: el propio fichero si la ruta es un fichero,
+     * los .jsonl y .jsonl.gz de la subcarpeta corpus si existe, o si no los corpus*.jsonl y corpus*.jsonl.gz
+     * de la carpeta (si una parte está con y sin comprimir, se lee sólo la versión sin comprimir).
+     */
+    public static List<Path> corpusFiles(Path docsPath) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isRegularFile(docsPath)) {
+            files.add(docsPath);
+            return files;
+        }
+
+        Path partsDir = docsPath.resolve(CORPUS_NAME);
+        boolean parts = Files.isDirectory(partsDir);
+        Path dir = parts ? partsDir : docsPath;
+        if (!Files.isDirectory(dir))
+            return files;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (!Files.isRegularFile(path) || (!parts && !name.startsWith(CORPUS_NAME)))
+                    continue;
+                if (name.endsWith(JSONL_SUFFIX))
+                    files.add(path);
+                else if (name.endsWith(JSONL_SUFFIX + ResultSink.GZIP_SUFFIX)) {
+                    String plain = name.substring(0, name.length() - ResultSink.GZIP_SUFFIX.length());
+                    if (!Files.exists(path.resolveSibling(plain)))
+                        files.add(path);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * Parsea los ficheros con el número de hilos indicado y entrega los documentos en lotes de batchSize
+     * (el último lote de cada hilo puede ser menor).
+     */
+    public static void read(List<Path> files, int numThreads, int batchSize, BatchHandler handler)
+            throws IOException {
+        read(files, Position.START, numThreads, batchSize, handler, null);
+    }
+
+    // Igual, pero empezando en la posición indicada y con puntos de control si checkpoints no es null
+    public static void read(List<Path> files, Position start, int numThreads, int batchSize, BatchHandler handler,
+                            Checkpoints checkpoints) throws IOException {
+        new CorpusReader(numThreads, batchSize, handler, checkpoints).run(files, start);
+    }
+
+    private void run(List<Path> files, Position start) throws IOException {
+        for (int i = 0; i < parsers.length; i++) {
+            parsers[i] = new Thread(this::parse, "parser-" + i);
+            parsers[i].start();
+        }
+
+        try {
+            for (int i = start.file(); i < files.size(); i++) {
+                long offset = i == start.file() ? start.offset() : 0;
+                if (files.get(i).getFileName().toString().endsWith(ResultSink.GZIP_SUFFIX))
+                    splitCompressed(files.get(i), i, offset);
+                else
+                    splitMapped(files.get(i), i, offset);
+            }
+        } finally {
+            try {
+                for (int i = 0; i < parsers.length; i++)
+                    chunks.put(END);
+                for (Thread parser : parsers)
+                    parser.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Lectura del corpus interrumpida", e);
+            }
+        }
+        checkFailure();
+    }
+
+    // Corta el fichero mapeado en bloques que terminan en un salto de línea
+    private void splitMapped(Path file, int fileIndex, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = offset;
+            while (start < size && failure == null) {
+                long end = Math.min(start + CHUNK_SIZE, size);
+                if (end < size)
+                    end = nextLineStart(channel, end, size);
+                // el mapeo sigue siendo válido después de cerrar el canal
+                put(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), new Position(fileIndex, end));
+                start = end;
+            }
+        }
+    }
+
+    // Posición siguiente al primer salto de línea desde pos (o el final del fichero)
+    private static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n <= 0)
+                break;
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n')
+                    return pos + i + 1;
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    // Descomprime el fichero en streaming y lo corta en bloques de líneas completas
+    private void splitCompressed(Path file, int fileIndex, long offset) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+            in.skipNBytes(offset);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int length = 0;
+            while (failure == null) {
+                length += in.readNBytes(buffer, length, buffer.length - length);
+                boolean eof = length < buffer.length;       // readNBytes sólo devuelve menos al final
+                if (eof) {
+                    if (length > 0)
+                        put(ByteBuffer.wrap(Arrays.copyOf(buffer, length)), new Position(fileIndex, offset + length));
+                    break;
+                }
+
+                int cut = length;
+                while (cut > 0 && buffer[cut - 1] != '\n')
+                    cut--;
+                if (cut == 0) {
+                    // una línea más larga que el búfer: lo agrandamos y seguimos leyendo
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                offset += cut;
+                put(ByteBuffer.wrap(Arrays.copyOf(buffer, cut)), new Position(fileIndex, offset));
+                System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                length -= cut;
+            }
+        }
+    }
+
+    // Encola un bloque que acaba justo antes de next y hace un punto de control si toca
+    private void put(ByteBuffer chunk, Position next) throws IOException {
+        try {
+            if (checkpoints != null)
+                linesRead += countLines(chunk);
+            chunks.put(chunk);
+            if (checkpoints == null || !checkpoints.due(linesRead))
+                return;
+
+            // cada hilo de parseo coge una marca después de todos los bloques anteriores, entrega su lote
+            // y espera en la barrera, así que al pasarla ya está entregado todo lo anterior a next
+            for (int i = 0; i < parsers.length; i++)
+                chunks.put(FLUSH);
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Lectura del corpus interrumpida", e);
+        } catch (BrokenBarrierException e) {
+            throw new IOException("Lectura del corpus interrumpida", e);
+        }
+        checkFailure();
+        checkpoints.checkpoint(next);
+    }
+
+    private static long countLines(ByteBuffer chunk) {
+        long lines = 0;
+        for (int i = chunk.position(); i < chunk.limit(); i++) {
+            if (chunk.get(i) == '\n')
+                lines++;
+        }
+        // el último bloque de un fichero puede no acabar en salto de línea
+        if (chunk.hasRemaining() && chunk.get(chunk.limit() - 1) != '\n')
+            lines++;
+        return lines;
+    }
+
+    private void parse() {
+        List<Doc> batch = new ArrayList<>(batchSize);
+        try {
+            ByteBuffer chunk;
+            while ((chunk = chunks.take()) != END) {
+                if (chunk == FLUSH) {
+                    batch = flush(batch);
+                    continue;
+                }
+                if (failure != null)
+                    continue;       // seguimos vaciando la cola para no bloquear al lector
+                int size = chunk.remaining();
+                try (MappingIterator<Doc> itr = reader.readValues(new ByteBufferBackedInputStream(chunk))) {
+                    while (itr.hasNextValue()) {
+                        batch.add(itr.nextValue());
+                        if (batch.size() == batchSize) {
+                            handler.accept(batch);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    handler.parsed(size);
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+            if (failure == null && !batch.isEmpty())
+                handler.accept(batch);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Entrega el lote a medias de un hilo de parseo y espera en la barrera del punto de control
+    private List<Doc> flush(List<Doc> batch) throws InterruptedException {
+        try {
+            if (failure == null && !batch.isEmpty()) {
+                handler.accept(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        try {
+            flushed.await();
+        } catch (BrokenBarrierException e) {
+            if (failure == null)
+                failure = e;
+        }
+        return batch;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        else if (failure != null)
+            throw new IOException(failure.getMessage(), failure);
+    }
+}
@@ -0,0 +1,105 @@
+package practicari;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import java.util.Arrays;
+
+/**
+ * Calcula todas las métricas de un ranking en varios cortes a la vez, recorriendo el ranking una sola vez:
+ * P, R, AP, RR, nDCG (con los grados de relevancia de los juicios) y bpref.
+ *
+ * Las métricas de un corte sólo tienen en cuenta los documentos del ranking hasta ese corte. Los resultados
+ * se devuelven en un array con una posición por combinación de métrica y corte, en el orden de {@link #header()}.
+ */
+public class Evaluator {
+    public static final String[] METRICS = {"P", "R", "AP", "RR", "nDCG", "bpref"};
+    private static final int P = 0, R = 1, AP = 2, RR = 3, NDCG = 4, BPREF = 5;
+
+    private final int[] cutoffs;
+
+    public Evaluator(int[] cutoffs) {
+        this.cutoffs = Arrays.stream(cutoffs).sorted().distinct().toArray();
+        if (this.cutoffs.length == 0 || this.cutoffs[0] < 1)
+            throw new IllegalArgumentException("Los cortes deben ser enteros positivos");
+    }
+
+    public int[] cutoffs() {
+        return cutoffs;
+    }
+
+    // Profundidad del ranking necesaria para evaluar todos los cortes
+    public int maxCutoff() {
+        return cutoffs[cutoffs.length - 1];
+    }
+
+    public int size() {
+        return METRICS.length * cutoffs.length;
+    }
+
+    public String[] header() {
+        String[] header = new String[size()];
+        for (int m = 0; m < METRICS.length; m++)
+            for (int c = 0; c < cutoffs.length; c++)
+                header[m * cutoffs.length + c] = METRICS[m] + "@" + cutoffs[c];
+        return header;
+    }
+
+    /**
+     * Evalúa el ranking con los juicios de su query. Una query sin documentos relevantes puntúa 0 en todas
+     * las métricas.
+     */
+    public double[] evaluate(ScoreDoc[] hits, ResolvedQrels.Judgments judgments) {
+        double[] values = new double[size()];
+        int numRelevant = judgments.numRelevant();
+        if (numRelevant == 0)
+            return values;
+
+        // bpref: sólo cuentan los primeros min(R, N) no relevantes juzgados por encima de cada relevante
+        int bprefDenominator = Math.min(numRelevant, judgments.numNonRelevant());
+
+        int relevantN = 0;
+        int nonRelevantN = 0;
+        int firstRelevant = 0;
+        double sumPrecisions = 0;
+        double dcg = 0;
+        double idealDcg = 0;
+        double sumBpref = 0;
+
+        int c = 0;
+        for (int rank = 1; rank <= maxCutoff(); rank++) {
+            if (rank <= hits.length) {
+                int doc = hits[rank - 1].doc;
+                int grade = judgments.grade(doc);
+                if (grade > 0) {
+                    relevantN++;
+                    sumPrecisions += (double) relevantN / rank;
+                    dcg += grade / log2(rank + 1);
+                    if (firstRelevant == 0)
+                        firstRelevant = rank;
+                    sumBpref += bprefDenominator == 0 ? 1 :
+                            1 - (double) Math.min(nonRelevantN, numRelevant) / bprefDenominator;
+                } else if (judgments.isJudged(doc)) {
+                    nonRelevantN++;
+                }
+            }
+            if (rank <= numRelevant)
+                idealDcg += judgments.idealGrade(rank - 1) / log2(rank + 1);
+
+            if (rank == cutoffs[c]) {
+                int n = cutoffs.length;
+                values[P * n + c] = (double) relevantN / rank;
+                values[R * n + c] = (double) relevantN / numRelevant;
+                values[AP * n + c] = sumPrecisions / numRelevant;
+                values[RR * n + c] = firstRelevant == 0 ? 0 : 1.0 / firstRelevant;
+                values[NDCG * n + c] = dcg / idealDcg;
+                values[BPREF * n + c] = sumBpref / numRelevant;
+                c++;
+            }
+        }
+        return values;
+    }
+
+    private static double log2(int x) {
+        return Math.log(x) / Math.log(2);
+    }
+}
@@ -0,0 +1,64 @@
+package practicari;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lee campos de los documentos de un ranking desde sus doc values, sin cargar los campos almacenados: los
+ * documentos se visitan en orden de id, así que cada segmento se recorre una sola vez hacia delante.
+ *
+ * {@link IndexTrecCovid} indexa id, url y pubmed_id como {@link org.apache.lucene.document.KeywordField},
+ * que guarda los doc values junto con el término.
+ */
+public class HitFields {
+    private HitFields() {}
+
+    /**
+     * Valores del campo para cada documento del ranking, en el mismo orden. Si un documento no tiene doc values
+     * del campo (índices antiguos, o segmentos con documentos de ambos tipos), el valor se lee de los campos
+     * almacenados cuando storedFallback es true, y si no se deja a null.
+     */
+    public static String[] values(IndexReader reader, ScoreDoc[] hits, String field, boolean storedFallback)
+            throws IOException {
+        Integer[] order = new Integer[hits.length];
+        for (int i = 0; i < hits.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> hits[i].doc));
+
+        String[] values = new String[hits.length];
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = null;
+        SortedSetDocValues docValues = null;
+        StoredFields storedFields = null;
+        for (int i : order) {
+            int doc = hits[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                docValues = leaf.reader().getSortedSetDocValues(field);
+                storedFields = null;
+            }
+
+            // un ranking no repite documentos, así que dentro del segmento los docs van en orden creciente
+            int leafDoc = doc - leaf.docBase;
+            if (docValues != null && docValues.advanceExact(leafDoc)) {
+                values[i] = docValues.lookupOrd(docValues.nextOrd()).utf8ToString();
+            } else if (storedFallback) {
+                // el segmento no tiene doc values del campo, o este documento no los tiene
+                if (storedFields == null)
+                    storedFields = leaf.reader().storedFields();
+                values[i] = storedFields.document(leafDoc, Set.of(field)).get(field);
+            }
+        }
+        return values;
+    }
+}
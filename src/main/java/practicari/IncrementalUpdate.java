@@ -0,0 +1,144 @@
+package practicari;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reindexación incremental por id de documento: cada documento indexado con -incremental guarda en doc values
+ * un hash de su contenido, así que al volver a indexar el corpus sólo se tocan los documentos nuevos o
+ * modificados. Los documentos se reemplazan con {@link IndexWriter#updateDocument}, de modo que reindexar no
+ * duplica documentos, y opcionalmente se borran los ids que ya no están en el corpus.
+ *
+ * Los índices creados sin -incremental no llevan hash, así que la primera reindexación incremental reescribe
+ * todos sus documentos.
+ */
+public class IncrementalUpdate {
+    private static final String ID_FIELD = "id";
+    public static final String HASH_FIELD = "content_hash";
+    // términos por llamada a deleteDocuments al borrar los ids que faltan
+    private static final int DELETE_BATCH = 1000;
+
+    // hash de cada id del índice; null si el id está repetido o el documento no tiene hash
+    private final Map<String, Long> indexedHashes;
+    private final Set<String> seenIds = ConcurrentHashMap.newKeySet();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private long deleted;
+
+    private IncrementalUpdate(Map<String, Long> indexedHashes) {
+        this.indexedHashes = indexedHashes;
+    }
+
+    // Lee los ids y hashes de los documentos que ya están en el índice del writer
+    public static IncrementalUpdate load(IndexWriter writer) throws IOException {
+        Map<String, Long> indexedHashes = new HashMap<>();
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                LeafReader leafReader = leaf.reader();
+                Bits liveDocs = leafReader.getLiveDocs();
+                SortedSetDocValues ids = leafReader.getSortedSetDocValues(ID_FIELD);
+                NumericDocValues hashes = leafReader.getNumericDocValues(HASH_FIELD);
+                StoredFields storedFields = ids == null ? leafReader.storedFields() : null;
+
+                for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc))
+                        continue;
+                    String id;
+                    if (ids != null)
+                        id = ids.advanceExact(doc) ? ids.lookupOrd(ids.nextOrd()).utf8ToString() : null;
+                    else
+                        id = storedFields.document(doc, Set.of(ID_FIELD)).get(ID_FIELD);
+                    if (id == null)
+                        continue;
+
+                    Long hash = hashes != null && hashes.advanceExact(doc) ? hashes.longValue() : null;
+                    // un id repetido (de un append anterior) se reindexa siempre para dejar un solo documento
+                    if (indexedHashes.containsKey(id))
+                        hash = null;
+                    indexedHashes.put(id, hash);
+                }
+            }
+        }
+        return new IncrementalUpdate(indexedHashes);
+    }
+
+    // Indexa un documento del corpus si es nuevo o ha cambiado; lo pueden llamar varios hilos a la vez
+    public void index(IndexWriter writer, Doc current) throws IOException {
+        seenIds.add(current.id());
+        long hash = contentHash(current);
+        Long indexedHash = indexedHashes.get(current.id());
+        if (indexedHash != null && indexedHash == hash) {
+            unchanged.incrementAndGet();
+            return;
+        }
+
+        writer.updateDocument(new Term(ID_FIELD, current.id()), IndexTrecCovid.createDocument(current, hash));
+        if (indexedHashes.containsKey(current.id()))
+            updated.incrementAndGet();
+        else
+            added.incrementAndGet();
+    }
+
+    // Borra los documentos cuyos ids estaban en el índice pero no en el corpus indexado
+    public void deleteMissing(IndexWriter writer) throws IOException {
+        List<Term> batch = new ArrayList<>(DELETE_BATCH);
+        for (String id : indexedHashes.keySet()) {
+            if (seenIds.contains(id))
+                continue;
+            batch.add(new Term(ID_FIELD, id));
+            deleted++;
+            if (batch.size() == DELETE_BATCH) {
+                writer.deleteDocuments(batch.toArray(new Term[0]));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            writer.deleteDocuments(batch.toArray(new Term[0]));
+    }
+
+    public String summary() {
+        return "Reindexación incremental: " + added.get() + " nuevos, " + updated.get() + " actualizados, "
+                + unchanged.get() + " sin cambios, " + deleted + " borrados";
+    }
+
+    // Hash de 64 bits de todos los campos que se indexan del documento
+    static long contentHash(Doc current) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String value : new String[]{current.id(), current.title(), current.text(), current.metadata().url(),
+                current.metadata().pubmed_id()}) {
+            if (value != null)
+                digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);        // separador, para que no se confundan campos contiguos
+        }
+        byte[] bytes = digest.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++)
+            hash = (hash << 8) | (bytes[i] & 0xFF);
+        return hash;
+    }
+}
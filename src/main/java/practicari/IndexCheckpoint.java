@@ -0,0 +1,134 @@
+package practicari;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puntos de control de la indexación: cada cierto número de documentos o de segundos se hace commit del
+ * índice guardando en los datos de usuario del commit la posición del corpus hasta la que está indexado y el
+ * número de documentos. Si la indexación se interrumpe, el índice se queda en el último commit y se puede
+ * retomar desde esa posición con -resume.
+ *
+ * Los puntos de control se hacen entre bloques del lector del corpus (unos 8 MB), así que como mucho hay uno
+ * por bloque.
+ */
+public class IndexCheckpoint implements CorpusReader.Checkpoints {
+    private static final String KEY_PREFIX = "checkpoint.";
+    private static final String FILE_KEY = "checkpoint.file";
+    private static final String FILE_INDEX_KEY = "checkpoint.fileindex";
+    private static final String OFFSET_KEY = "checkpoint.offset";
+    private static final String DOCS_KEY = "checkpoint.docs";
+    private static final String COMPLETE_KEY = "checkpoint.complete";
+
+    private final IndexWriter writer;
+    private final IndexingPipeline pipeline;
+    private final List<Path> files;
+    private final long everyDocs;
+    private final long everyNanos;
+    // documentos del corpus indexados en ejecuciones anteriores, al retomar
+    private final long startDocs;
+    private long lastDocs;
+    private long lastTime = System.nanoTime();
+
+    // Último punto de control de un índice: fichero del corpus, posición, documentos y si se terminó
+    public record State(String fileName, CorpusReader.Position position, long docs, boolean complete) {
+        // Si el corpus tiene en la posición guardada el mismo fichero que cuando se hizo el punto de control
+        public boolean matches(List<Path> files) {
+            if (complete)
+                return true;
+            return position.file() < files.size()
+                    && files.get(position.file()).getFileName().toString().equals(fileName);
+        }
+    }
+
+    /**
+     * Con everyDocs o everySeconds a 0 no se hacen puntos de control por ese criterio; con los dos a 0 sólo
+     * se guarda la posición en el commit final.
+     */
+    public IndexCheckpoint(IndexWriter writer, IndexingPipeline pipeline, List<Path> files, State resumed,
+                           long everyDocs, long everySeconds) {
+        this.writer = writer;
+        this.pipeline = pipeline;
+        this.files = files;
+        this.everyDocs = everyDocs;
+        this.everyNanos = everySeconds * 1_000_000_000L;
+        this.startDocs = resumed == null ? 0 : resumed.docs();
+    }
+
+    // Punto de control del último commit del índice, o null si no tiene
+    public static State lastCheckpoint(IndexWriter writer) {
+        Map<String, String> data = new HashMap<>();
+        Iterable<Map.Entry<String, String>> commitData = writer.getLiveCommitData();
+        if (commitData != null) {
+            for (Map.Entry<String, String> entry : commitData)
+                data.put(entry.getKey(), entry.getValue());
+        }
+        if (!data.containsKey(FILE_INDEX_KEY))
+            return null;
+        return new State(data.get(FILE_KEY), new CorpusReader.Position(Integer.parseInt(data.get(FILE_INDEX_KEY)),
+                Long.parseLong(data.get(OFFSET_KEY))), Long.parseLong(data.get(DOCS_KEY)),
+                Boolean.parseBoolean(data.get(COMPLETE_KEY)));
+    }
+
+    /**
+     * Quita los datos del punto de control de los próximos commits del writer. El writer hereda los datos del
+     * último commit del índice, y un commit sin puntos de control no puede dejar una posición antigua desde la
+     * que -resume retomaría la indexación.
+     */
+    public static void clear(IndexWriter writer) {
+        Map<String, String> data = new HashMap<>();
+        Iterable<Map.Entry<String, String>> commitData = writer.getLiveCommitData();
+        if (commitData != null) {
+            for (Map.Entry<String, String> entry : commitData) {
+                if (!entry.getKey().startsWith(KEY_PREFIX))
+                    data.put(entry.getKey(), entry.getValue());
+            }
+        }
+        writer.setLiveCommitData(data.entrySet());
+    }
+
+    @Override
+    public boolean due(long linesRead) {
+        // después de cada punto de control los documentos indexados coinciden con las líneas leídas
+        return (everyDocs > 0 && linesRead - lastDocs >= everyDocs)
+                || (everyNanos > 0 && System.nanoTime() - lastTime >= everyNanos);
+    }
+
+    // Lo llama el lector del corpus cuando ya ha entregado todo lo anterior a next
+    @Override
+    public void checkpoint(CorpusReader.Position next) throws IOException {
+        long start = System.nanoTime();
+        pipeline.flush();
+        lastDocs = pipeline.indexedDocs();
+        commit(next, false);
+        lastTime = System.nanoTime();
+        System.out.println("Punto de control: " + (startDocs + lastDocs) + " documentos (" + fileName(next)
+                + ", byte " + next.offset() + ") en " + String.format("%.2f", (lastTime - start) / 1e9) + " s");
+    }
+
+    // Commit final, después de indexar todo el corpus
+    public void complete() throws IOException {
+        lastDocs = pipeline.indexedDocs();
+        commit(new CorpusReader.Position(files.size(), 0), true);
+    }
+
+    private void commit(CorpusReader.Position next, boolean complete) throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put(FILE_KEY, fileName(next));
+        data.put(FILE_INDEX_KEY, String.valueOf(next.file()));
+        data.put(OFFSET_KEY, String.valueOf(next.offset()));
+        data.put(DOCS_KEY, String.valueOf(startDocs + lastDocs));
+        data.put(COMPLETE_KEY, String.valueOf(complete));
+        writer.setLiveCommitData(data.entrySet());
+        writer.commit();
+    }
+
+    private String fileName(CorpusReader.Position position) {
+        return position.file() < files.size() ? files.get(position.file()).getFileName().toString() : "";
+    }
+}
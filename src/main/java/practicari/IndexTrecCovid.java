@@ -1,23 +1,37 @@
 package practicari;
 
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.json.JsonMapper;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
 
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class IndexTrecCovid {
@@ -26,8 +40,29 @@ public class IndexTrecCovid {
             "  -openmode <openmode>: (el open mode será append, create, o create_or_append)\n" +
             "  -index <ruta>: ruta de la carpeta que contiene o contendrá el índice\n" +
             "  -docs <ruta>: ruta de la carpeta que contiene el corpus de documentos y también los " +
-            "archivos de queries y juicios de relevancia\n" +
-            "  -indexingmodel cuyos valores posibles son jm <lambda> | bm25 <k1>";
+            "archivos de queries y juicios de relevancia. El corpus puede ser corpus.jsonl, corpus.jsonl.gz, " +
+            "varias partes corpus*.jsonl[.gz] o una subcarpeta corpus con partes .jsonl[.gz]\n" +
+            "  -indexingmodel cuyos valores posibles son jm <lambda> | bm25 <k1>\n" +
+            "  -threads <n>: número de hilos que construyen y añaden documentos (por defecto 1)\n" +
+            "  -parsethreads <n>: número de hilos que parsean el corpus (por defecto 1)\n" +
+            "  -rambuffer <MB>: tamaño del buffer de RAM del IndexWriter antes de volcar un segmento\n" +
+            "  -mergepolicy tiered | logdoc | logbyte | none: política de fusión de segmentos\n" +
+            "  -mergescheduler concurrent | serial: planificador de fusiones\n" +
+            "  -mergethreads <n>: hilos de fusión del planificador concurrente\n" +
+            "  -shards <n>: divide el corpus en n shards que se indexan en paralelo en subcarpetas shard-<i>\n" +
+            "  -shardlayout merged | separate: fusiona los shards en el índice con addIndexes o los deja " +
+            "separados (por defecto merged)\n" +
+            "  -incremental: reindexa por id, añadiendo o reemplazando sólo los documentos nuevos o modificados\n" +
+            "  -deletemissing: con -incremental, borra del índice los ids que ya no están en el corpus\n" +
+            "  -checkpointdocs <n>: hace commit cada n documentos guardando la posición del corpus (punto de control)\n" +
+            "  -checkpointsecs <s>: hace commit cada s segundos guardando la posición del corpus\n" +
+            "  -resume: retoma una indexación interrumpida desde el último punto de control del índice\n" +
+            "  -statsinterval <s>: escribe una línea con el progreso cada s segundos (por defecto 10; 0 para no escribirla)\n" +
+            "  -statsjson <fichero>: escribe el resumen final de la indexación en JSON";
+    // documentos por lote que el parser entrega a los hilos de indexación
+    private static final int BATCH_SIZE = 1000;
+    // subcarpeta del índice con los shards temporales que se fusionan con -shardlayout merged
+    private static final String MERGE_DIR = "merge-tmp";
 
     public static void main(String[] args) {
         // Parsear argumentos de línea de comandos
@@ -35,6 +70,21 @@ public class IndexTrecCovid {
         String indexPath = null;
         String docsPath = null;
         String indexingModel = null;
+        int numThreads = 1;
+        int parseThreads = 1;
+        double ramBufferMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+        String mergePolicy = "tiered";
+        String mergeScheduler = "concurrent";
+        int mergeThreads = 0;
+        int numShards = 1;
+        String shardLayout = "merged";
+        boolean incremental = false;
+        boolean deleteMissing = false;
+        long checkpointDocs = 0;
+        long checkpointSecs = 0;
+        boolean resume = false;
+        int statsInterval = 10;
+        String statsJson = null;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -55,6 +105,51 @@ public class IndexTrecCovid {
                         indexingModel += " " + args[++i];
                     }
                     break;
+                case "-threads":
+                    numThreads = tryParseInt(args[++i], "Argumento -threads no es un entero válido.");
+                    break;
+                case "-parsethreads":
+                    parseThreads = tryParseInt(args[++i], "Argumento -parsethreads no es un entero válido.");
+                    break;
+                case "-rambuffer":
+                    ramBufferMB = tryParseDouble(args[++i], "Argumento -rambuffer no es un número válido.");
+                    break;
+                case "-mergepolicy":
+                    mergePolicy = args[++i];
+                    break;
+                case "-mergescheduler":
+                    mergeScheduler = args[++i];
+                    break;
+                case "-mergethreads":
+                    mergeThreads = tryParseInt(args[++i], "Argumento -mergethreads no es un entero válido.");
+                    break;
+                case "-shards":
+                    numShards = tryParseInt(args[++i], "Argumento -shards no es un entero válido.");
+                    break;
+                case "-shardlayout":
+                    shardLayout = args[++i];
+                    break;
+                case "-incremental":
+                    incremental = true;
+                    break;
+                case "-deletemissing":
+                    deleteMissing = true;
+                    break;
+                case "-checkpointdocs":
+                    checkpointDocs = tryParseInt(args[++i], "Argumento -checkpointdocs no es un entero válido.");
+                    break;
+                case "-checkpointsecs":
+                    checkpointSecs = tryParseInt(args[++i], "Argumento -checkpointsecs no es un entero válido.");
+                    break;
+                case "-resume":
+                    resume = true;
+                    break;
+                case "-statsinterval":
+                    statsInterval = tryParseInt(args[++i], "Argumento -statsinterval no es un entero válido.");
+                    break;
+                case "-statsjson":
+                    statsJson = args[++i];
+                    break;
                 default:
                     System.err.println("Opción desconocida: " + args[i]);
                     System.out.println(usage);
@@ -67,30 +162,80 @@ public class IndexTrecCovid {
             System.err.println(usage);
             System.exit(1);
         }
+        if (numThreads < 1) {
+            System.err.println("Opción -threads debe ser un entero positivo.");
+            System.exit(1);
+        } else if (parseThreads < 1) {
+            System.err.println("Opción -parsethreads debe ser un entero positivo.");
+            System.exit(1);
+        } else if (ramBufferMB <= 0) {
+            System.err.println("Opción -rambuffer debe ser un número positivo.");
+            System.exit(1);
+        } else if (numShards < 1) {
+            System.err.println("Opción -shards debe ser un entero positivo.");
+            System.exit(1);
+        } else if (!"merged".equalsIgnoreCase(shardLayout) && !"separate".equalsIgnoreCase(shardLayout)) {
+            System.err.println("Opción -shardlayout no válida: " + shardLayout);
+            System.exit(1);
+        } else if (!List.of("tiered", "logdoc", "logbyte", "none").contains(mergePolicy.toLowerCase())) {
+            System.err.println("Política de fusión no válida: " + mergePolicy);
+            System.exit(1);
+        } else if (!List.of("concurrent", "serial").contains(mergeScheduler.toLowerCase())) {
+            System.err.println("Planificador de fusiones no válido: " + mergeScheduler);
+            System.exit(1);
+        } else if (incremental && numShards > 1) {
+            // los shards reparten los lotes por turnos, así que un id no tiene un shard fijo que actualizar
+            System.err.println("Opción -incremental no se puede combinar con -shards.");
+            System.exit(1);
+        } else if (deleteMissing && !incremental) {
+            System.err.println("Opción -deletemissing requiere -incremental.");
+            System.exit(1);
+        } else if (checkpointDocs < 0 || checkpointSecs < 0) {
+            System.err.println("Opciones -checkpointdocs y -checkpointsecs deben ser 0 o números naturales.");
+            System.exit(1);
+        }
+        boolean checkpointing = resume || checkpointDocs > 0 || checkpointSecs > 0;
+        if (checkpointing && numShards > 1) {
+            // los shards hacen commit por separado, así que no hay una única posición del corpus que guardar
+            System.err.println("Los puntos de control no se pueden combinar con -shards.");
+            System.exit(1);
+        } else if (resume && deleteMissing) {
+            // los ids anteriores al punto de control no se vuelven a leer y se borrarían
+            System.err.println("Opción -resume no se puede combinar con -deletemissing.");
+            System.exit(1);
+        } else if (resume && "create".equalsIgnoreCase(openMode)) {
+            System.err.println("Opción -resume no se puede combinar con -openmode create.");
+            System.exit(1);
+        }
 
         // Configurar el analizador
         Analyzer analyzer = new StandardAnalyzer();
 
         // Configurar la similitud según el modelo especificado
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+        Similarity similarity = null;
         if (indexingModel.startsWith("jm")) {
             double lambda = Double.parseDouble(indexingModel.substring(3));
-            iwc.setSimilarity(new LMJelinekMercerSimilarity((float) lambda));
+            similarity = new LMJelinekMercerSimilarity((float) lambda);
         } else if (indexingModel.startsWith("bm25")) {
             float k1 = Float.parseFloat(indexingModel.substring(5));
-            iwc.setSimilarity(new BM25Similarity(k1, 0.75f)); // Usando b=0.75 por defecto
+            similarity = new BM25Similarity(k1, 0.75f); // Usando b=0.75 por defecto
         } else {
             System.err.println("Modelo de indexación no válido: " + indexingModel);
             System.exit(1);
         }
+        // las estadísticas se miden desde aquí y leen los mensajes de flush y fusión de todos los writers
+        IndexingStats stats = new IndexingStats(statsInterval);
+        WriterSettings settings = new WriterSettings(analyzer, similarity, ramBufferMB, mergePolicy,
+                mergeScheduler, mergeThreads, stats);
 
         // Definir el modo de apertura del índice
+        OpenMode mode = null;
         if ("create_or_append".equalsIgnoreCase(openMode)) {
-            iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+            mode = OpenMode.CREATE_OR_APPEND;
         } else if ("create".equalsIgnoreCase(openMode)) {
-            iwc.setOpenMode(OpenMode.CREATE);
+            mode = OpenMode.CREATE;
         } else if ("append".equalsIgnoreCase(openMode)) {
-            iwc.setOpenMode(OpenMode.APPEND);
+            mode = OpenMode.APPEND;
         } else {
             System.err.println("Modo de apertura no válido: " + openMode);
             System.exit(1);
@@ -98,49 +243,297 @@ public class IndexTrecCovid {
 
         // Abrir el índice
         try {
-            Directory dir = FSDirectory.open(Paths.get(indexPath));
-            IndexWriter writer = new IndexWriter(dir, iwc);
-
             // Parsear y indexar documentos
-            if(!docsPath.endsWith(File.separator))
-                docsPath += File.separator;
-            File corpus = new File(docsPath + "corpus.jsonl");
-            parseAndIndex(corpus, writer);
-
-            writer.commit();
-            writer.close();
-            dir.close();
+            List<Path> corpus = CorpusReader.corpusFiles(Paths.get(docsPath));
+            if (corpus.isEmpty()) {
+                System.err.println("No se ha encontrado el corpus en " + docsPath);
+                System.exit(1);
+            }
+
+            if (numShards > 1) {
+                buildShards(corpus, parseThreads, Paths.get(indexPath), numShards,
+                        "merged".equalsIgnoreCase(shardLayout), numThreads, mode, settings, stats);
+            } else {
+                Directory dir = FSDirectory.open(Paths.get(indexPath));
+                IndexWriter writer = new IndexWriter(dir, settings.newConfig(resume ? OpenMode.APPEND : mode));
+
+                // al retomar se sigue leyendo el corpus desde la posición del último punto de control
+                IndexCheckpoint.State resumed = null;
+                if (resume) {
+                    resumed = IndexCheckpoint.lastCheckpoint(writer);
+                    if (resumed == null) {
+                        System.err.println("El índice no tiene ningún punto de control desde el que retomar.");
+                        System.exit(1);
+                    } else if (resumed.complete()) {
+                        System.out.println("La indexación ya estaba completa: " + resumed.docs() + " documentos.");
+                        writer.close();
+                        dir.close();
+                        stats.close();
+                        return;
+                    } else if (!resumed.matches(corpus)) {
+                        System.err.println("El corpus no coincide con el del punto de control, que está en "
+                                + resumed.fileName());
+                        System.exit(1);
+                    }
+                    System.out.println("Retomando la indexación en " + resumed.fileName() + ", byte "
+                            + resumed.position().offset() + " (" + resumed.docs() + " documentos ya indexados)");
+                }
+
+                // en modo incremental se comparan los hashes del corpus con los de los documentos ya indexados
+                IncrementalUpdate update = incremental ? IncrementalUpdate.load(writer) : null;
+                IndexingPipeline pipeline = new IndexingPipeline(writer, numThreads, update);
+                stats.track(writer, pipeline);
+                IndexCheckpoint checkpoint = checkpointing ?
+                        new IndexCheckpoint(writer, pipeline, corpus, resumed, checkpointDocs, checkpointSecs) : null;
+                parseAndIndex(corpus, resumed == null ? CorpusReader.Position.START : resumed.position(),
+                        parseThreads, checkpoint, stats, pipeline);
+                if (update != null) {
+                    if (deleteMissing)
+                        update.deleteMissing(writer);
+                    System.out.println(update.summary());
+                }
+
+                if (checkpoint != null) {
+                    checkpoint.complete();
+                } else {
+                    IndexCheckpoint.clear(writer);
+                    writer.commit();
+                }
+                writer.close();
+                dir.close();
+                stats.finish(List.of(Paths.get(indexPath)));
+            }
+
+            stats.printSummary();
+            if (statsJson != null)
+                stats.writeJson(new File(statsJson));
+            stats.close();
         } catch (IOException e) {
             System.err.println("Excepción de E/S: " + e.getMessage());
             System.exit(1);
         }
     }
 
+    // Indexa el corpus repartido en shards, cada uno con su propio IndexWriter y su propia carpeta
+    private static void buildShards(List<Path> corpus, int parseThreads, Path indexPath, int numShards,
+                                    boolean merge, int numThreads, OpenMode mode, WriterSettings settings,
+                                    IndexingStats stats) throws IOException {
+        Directory[] shardDirs = new Directory[numShards];
+        IndexWriter[] shardWriters = new IndexWriter[numShards];
+        IndexingPipeline[] pipelines = new IndexingPipeline[numShards];
+        int threadsPerShard = Math.max(1, numThreads / numShards);
 
-    private static void parseAndIndex(File corpusFile, IndexWriter writer) {
-        ObjectReader reader = JsonMapper.builder().findAndAddModules().build()
-                .readerFor(Doc.class);
-        final List<Doc> corpusDocs;
-        try {
-            corpusDocs = reader.<Doc>readValues(corpusFile).readAll();
+        // si se van a fusionar, los shards son temporales, se crean de cero en su propia carpeta y no tocan los
+        // shards de un índice construido con -shardlayout separate
+        OpenMode shardMode = merge ? OpenMode.CREATE : mode;
+        Path shardsPath = merge ? indexPath.resolve(MERGE_DIR) : indexPath;
+        if (merge) {
+            IOUtils.rm(shardsPath);     // restos de una fusión interrumpida
+            if (mode != OpenMode.CREATE && !ShardedIndex.shardPaths(indexPath).isEmpty()) {
+                System.err.println("Ya hay un índice con shards separados en " + indexPath
+                        + "; use -shardlayout separate para añadir documentos o -openmode create para sustituirlo.");
+                System.exit(1);
+            }
+            if (mode == OpenMode.APPEND && !hasRootIndex(indexPath)) {
+                System.err.println("No hay ningún índice en " + indexPath + " al que añadir documentos.");
+                System.exit(1);
+            }
+        } else if (shardMode == OpenMode.CREATE) {
+            removeShards(indexPath, numShards);
+        }
+        // ShardedIndex abre el índice único de la carpeta raíz si lo hay, así que no puede quedar uno junto a
+        // los shards
+        if (!merge) {
+            if (shardMode == OpenMode.CREATE) {
+                removeRootIndex(indexPath);
+            } else if (hasRootIndex(indexPath)) {
+                System.err.println("Ya hay un índice sin shards en " + indexPath
+                        + "; use -openmode create para sustituirlo por los shards.");
+                System.exit(1);
+            }
+        }
 
-            // mientras haya documentos, les sacamos las partes y las indexamos
-            for (Doc current : corpusDocs) {
-                Document doc = new Document();
+        for (int i = 0; i < numShards; i++) {
+            shardDirs[i] = FSDirectory.open(ShardedIndex.shardPath(shardsPath, i));
+            shardWriters[i] = new IndexWriter(shardDirs[i], settings.newConfig(shardMode));
+            pipelines[i] = new IndexingPipeline(shardWriters[i], threadsPerShard);
+            stats.track(shardWriters[i], pipelines[i]);
+        }
+
+        parseAndIndex(corpus, CorpusReader.Position.START, parseThreads, null, stats, pipelines);
 
-                doc.add(new KeywordField("id", current.id(), Field.Store.YES));
-                doc.add(new StringField("title", current.title(), Field.Store.YES));
-                doc.add(new TextField("text", current.text(), Field.Store.YES));
-                doc.add(new StringField("url", current.metadata().url(), Field.Store.YES));
-                doc.add(new StringField("pubmed_id", current.metadata().pubmed_id(), Field.Store.YES));
+        for (IndexWriter shardWriter : shardWriters) {
+            shardWriter.commit();
+            shardWriter.close();
+        }
 
-                writer.addDocument(doc);
+        if (merge) {
+            long startTime = System.nanoTime();
+            try (Directory dir = FSDirectory.open(indexPath);
+                 IndexWriter writer = new IndexWriter(dir, settings.newConfig(mode))) {
+                writer.addIndexes(shardDirs);
+                IndexCheckpoint.clear(writer);
+                writer.commit();
+            } finally {
+                IOUtils.close(shardDirs);
+                IOUtils.rm(shardsPath);
             }
+            // el índice fusionado sustituye al que hubiera con shards separados, que ShardedIndex ya no abriría
+            if (mode == OpenMode.CREATE)
+                removeShards(indexPath, 0);
+            System.out.println("Shards fusionados en " + String.format("%.2f", (System.nanoTime() - startTime) / 1e9)
+                    + " s");
+            stats.finish(List.of(indexPath));
+        } else {
+            IOUtils.close(shardDirs);
+            stats.finish(ShardedIndex.shardPaths(indexPath));
+        }
+    }
+
+    // Borra las carpetas de shards a partir del shard indicado, para no mezclar shards de otra indexación
+    private static void removeShards(Path indexPath, int fromShard) throws IOException {
+        List<Path> shardPaths = ShardedIndex.shardPaths(indexPath);
+        for (int i = fromShard; i < shardPaths.size(); i++)
+            IOUtils.rm(shardPaths.get(i));
+    }
+
+    private static boolean hasRootIndex(Path indexPath) throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath)) {
+            return DirectoryReader.indexExists(dir);
+        }
+    }
+
+    // Borra los ficheros del índice único de la carpeta raíz, dejando las carpetas de shards
+    private static void removeRootIndex(Path indexPath) throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath)) {
+            for (String file : dir.listAll()) {
+                if (file.startsWith(IndexFileNames.SEGMENTS) || file.startsWith(IndexFileNames.PENDING_SEGMENTS)
+                        || file.equals(IndexWriter.WRITE_LOCK_NAME)
+                        || IndexFileNames.CODEC_FILE_PATTERN.matcher(file).matches())
+                    dir.deleteFile(file);
+            }
+        }
+    }
+
+    private static void parseAndIndex(List<Path> corpusFiles, CorpusReader.Position start, int parseThreads,
+                                      CorpusReader.Checkpoints checkpoints, IndexingStats stats,
+                                      IndexingPipeline... pipelines) {
+        long startTime = System.nanoTime();
+
+        // leemos el corpus en streaming: los hilos de parseo agrupan los documentos en lotes y los reparten
+        // entre los pipelines (uno por shard), cuyos hilos los indexan
+        try {
+            AtomicInteger next = new AtomicInteger();
+            CorpusReader.read(corpusFiles, start, parseThreads, BATCH_SIZE, stats.counting(
+                    batch -> pipelines[Math.floorMod(next.getAndIncrement(), pipelines.length)].submit(batch)),
+                    checkpoints);
+            for (IndexingPipeline pipeline : pipelines)
+                pipeline.finish();
         } catch (IOException e) {
-            System.err.println("Error al indexar el archivo corpus.jsonl: " + e.getMessage());
+            System.err.println("Error al indexar el corpus: " + e.getMessage());
             System.exit(1);
         }
 
+        long numDocs = 0;
+        int numThreads = 0;
+        for (IndexingPipeline pipeline : pipelines) {
+            numDocs += pipeline.indexedDocs();
+            numThreads += pipeline.numThreads();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println("Documentos indexados: " + numDocs + " en " + String.format("%.2f", seconds) + " s ("
+                + String.format("%.1f", numDocs / Math.max(seconds, 1e-9)) + " docs/s, " + numThreads + " hilos)");
+        System.out.println("Pico de memoria heap: " + (peakHeapUsed() / (1024 * 1024)) + " MB");
+    }
+
+    // Configuración común de los IndexWriter; cada writer necesita su propio IndexWriterConfig
+    record WriterSettings(Analyzer analyzer, Similarity similarity, double ramBufferMB, String mergePolicy,
+                          String mergeScheduler, int mergeThreads, IndexingStats stats) {
+
+        IndexWriterConfig newConfig(OpenMode openMode) {
+            IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+            iwc.setSimilarity(similarity);
+            iwc.setOpenMode(openMode);
+            iwc.setInfoStream(stats.newInfoStream());
+
+            // Configurar el buffer de RAM y las fusiones de segmentos
+            iwc.setRAMBufferSizeMB(ramBufferMB);
+            switch (mergePolicy.toLowerCase()) {
+                case "logdoc":
+                    iwc.setMergePolicy(new LogDocMergePolicy());
+                    break;
+                case "logbyte":
+                    iwc.setMergePolicy(new LogByteSizeMergePolicy());
+                    break;
+                case "none":
+                    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+                    break;
+                default:
+                    iwc.setMergePolicy(new TieredMergePolicy());
+                    break;
+            }
+            if ("serial".equalsIgnoreCase(mergeScheduler)) {
+                iwc.setMergeScheduler(new SerialMergeScheduler());
+            } else {
+                ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler();
+                if (mergeThreads > 0)
+                    cms.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);     // mismo margen que usa Lucene por defecto
+                iwc.setMergeScheduler(cms);
+            }
+            return iwc;
+        }
+    }
+
+    // Construye el documento Lucene de un documento del corpus
+    static Document createDocument(Doc current) {
+        Document doc = new Document();
+
+        doc.add(new KeywordField("id", current.id(), Field.Store.YES));
+        doc.add(new StringField("title", current.title(), Field.Store.YES));
+        doc.add(new TextField("text", current.text(), Field.Store.YES));
+        // url y pubmed_id llevan doc values para mostrar rankings profundos sin leer los campos almacenados
+        doc.add(new KeywordField("url", current.metadata().url(), Field.Store.YES));
+        doc.add(new KeywordField("pubmed_id", current.metadata().pubmed_id(), Field.Store.YES));
+
+        return doc;
+    }
+
+    // Documento Lucene con el hash del contenido, para que la reindexación incremental detecte los documentos
+    // sin cambios. Sólo se calcula con -incremental: el hash recorre todo el texto del documento
+    static Document createDocument(Doc current, long contentHash) {
+        Document doc = createDocument(current);
+        doc.add(new NumericDocValuesField(IncrementalUpdate.HASH_FIELD, contentHash));
+        return doc;
+    }
+
+    private static int tryParseInt(String n, String errMsg) {
+        try {
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            System.err.println("Error de parsing: " + errMsg);
+            System.exit(1);
+        }
+        return 0;
+    }
+
+    private static double tryParseDouble(String n, String errMsg) {
+        try {
+            return Double.parseDouble(n);
+        } catch (NumberFormatException e) {
+            System.err.println("Error de parsing: " + errMsg);
+            System.exit(1);
+        }
+        return 0;
+    }
+
+    // Suma de los picos de uso de los pools de memoria heap desde el arranque de la JVM
+    private static long peakHeapUsed() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
     }
 
 }
@@ -0,0 +1,133 @@
+package practicari;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline de indexación: la etapa de parseo entrega lotes de {@link Doc} a una cola acotada y un
+ * conjunto de hilos trabajadores construye los documentos Lucene y los añade al {@link IndexWriter},
+ * que es thread-safe.
+ *
+ * Con un {@link IncrementalUpdate} los documentos se reemplazan por id y se saltan los que no han cambiado.
+ */
+public class IndexingPipeline {
+    // marca de fin de la cola para que los trabajadores terminen
+    private static final List<Doc> END = new ArrayList<>();
+
+    private final IndexWriter writer;
+    private final IncrementalUpdate update;
+    private final BlockingQueue<List<Doc>> queue;
+    private final Thread[] workers;
+    private final AtomicLong indexedDocs = new AtomicLong();
+    // lotes encolados que los trabajadores aún no han terminado; protegido por this
+    private int pendingBatches;
+    private volatile Exception failure;
+
+    public IndexingPipeline(IndexWriter writer, int numThreads) {
+        this(writer, numThreads, null);
+    }
+
+    public IndexingPipeline(IndexWriter writer, int numThreads, IncrementalUpdate update) {
+        this.writer = writer;
+        this.update = update;
+        // dos lotes por hilo bastan para que los trabajadores no esperen al parser
+        this.queue = new ArrayBlockingQueue<>(2 * numThreads);
+        this.workers = new Thread[numThreads];
+
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new Thread(this::work, "indexer-" + i);
+            workers[i].start();
+        }
+    }
+
+    // Encola un lote para indexar; bloquea si la cola está llena
+    public void submit(List<Doc> batch) throws IOException {
+        checkFailure();
+        synchronized (this) {
+            pendingBatches++;
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Indexación interrumpida", e);
+        }
+    }
+
+    // Espera a que se hayan indexado todos los lotes encolados, sin parar a los trabajadores
+    public void flush() throws IOException {
+        try {
+            synchronized (this) {
+                while (pendingBatches > 0)
+                    wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Indexación interrumpida", e);
+        }
+        checkFailure();
+    }
+
+    // Espera a que los trabajadores vacíen la cola y terminen
+    public void finish() throws IOException {
+        try {
+            for (int i = 0; i < workers.length; i++)
+                queue.put(END);
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Indexación interrumpida", e);
+        }
+        checkFailure();
+    }
+
+    public int numThreads() {
+        return workers.length;
+    }
+
+    public long indexedDocs() {
+        return indexedDocs.get();
+    }
+
+    private void work() {
+        try {
+            List<Doc> batch;
+            while ((batch = queue.take()) != END) {
+                if (failure == null) {
+                    try {
+                        for (Doc current : batch) {
+                            if (update != null)
+                                update.index(writer, current);
+                            else
+                                writer.addDocument(IndexTrecCovid.createDocument(current));
+                        }
+                        indexedDocs.addAndGet(batch.size());
+                    } catch (IOException | RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                // con un fallo seguimos vaciando la cola para no bloquear al parser
+                synchronized (this) {
+                    if (--pendingBatches == 0)
+                        notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        else if (failure != null)
+            throw new IOException(failure.getMessage(), failure);
+    }
+}
@@ -0,0 +1,406 @@
+package practicari;
+
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.InfoStream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Telemetría de la indexación: documentos y bytes parseados, documentos indexados, uso del buffer de RAM de
+ * los IndexWriter, flushes y fusiones (leídos del {@link InfoStream} de Lucene), segmentos y tiempo de GC.
+ *
+ * Se publica por JMX (practicari:type=IndexingStats), en una línea periódica por consola y al final en un
+ * resumen, que también se puede escribir en JSON junto con el tamaño del índice por tipo de fichero.
+ */
+public class IndexingStats implements Closeable {
+    private static final String OBJECT_NAME = "practicari:type=IndexingStats";
+    private static final double MB = 1024 * 1024;
+    private static final String COMPOUND_DATA = ".cfs";
+    private static final String COMPOUND_ENTRIES = ".cfe";
+    private static final Pattern FLUSHED = Pattern.compile("flushed: segment=\\S+ ramUsed=([0-9.,]+) MB");
+    private static final Pattern FLUSH_TIME = Pattern.compile("flush time ([0-9.]+) ms");
+    private static final Pattern MERGE_TIME = Pattern.compile("merge time (\\d+) ms");
+    // cada segmento de la lista de "after commitMerge" empieza por su nombre y la versión, p.ej. _a(9.8.0)
+    private static final Pattern SEGMENT = Pattern.compile("(?:^| )_[0-9a-z]+\\(");
+
+    // Atributos que se publican por JMX
+    public interface Metrics {
+        long getDocsParsed();
+
+        long getBytesParsed();
+
+        long getDocsIndexed();
+
+        double getDocsPerSecond();
+
+        double getParsedMBPerSecond();
+
+        double getRamBufferMB();
+
+        long getFlushCount();
+
+        double getFlushSeconds();
+
+        long getMergeCount();
+
+        double getMergeSeconds();
+
+        long getSegmentCount();
+
+        double getGcSeconds();
+
+        double getElapsedSeconds();
+    }
+
+    // Resumen final, tal como se escribe en el JSON
+    public record Summary(long docsParsed, long bytesParsed, long docsIndexed, double seconds, double docsPerSecond,
+                          double parsedMBPerSecond, long flushes, double flushSeconds, double peakRamBufferMB,
+                          long merges, double mergeSeconds, double gcSeconds, long segments, long indexBytes,
+                          Map<String, Long> indexBytesByType) {}
+
+    private final long startTime = System.nanoTime();
+    private final long startGcMillis = gcMillis();
+    private final AtomicLong docsParsed = new AtomicLong();
+    private final AtomicLong bytesParsed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong peakFlushRamBytes = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong mergeMillis = new AtomicLong();
+    private final List<IndexWriter> writers = new CopyOnWriteArrayList<>();
+    private final List<IndexingPipeline> pipelines = new CopyOnWriteArrayList<>();
+    private final List<StatsInfoStream> infoStreams = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> indexBytesByType = new TreeMap<>();
+    private final ScheduledExecutorService logger;
+    private final ObjectName objectName;
+    private long finalSegments;
+
+    /**
+     * Empieza a medir, registra el MBean y, si logSeconds es positivo, escribe una línea con el progreso cada
+     * logSeconds segundos.
+     */
+    public IndexingStats(int logSeconds) {
+        ObjectName name = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(new StandardMBean(new MetricsView(), Metrics.class), name);
+        } catch (JMException e) {
+            // otro IndexingStats en la misma JVM ya tiene el nombre: seguimos sin JMX
+            System.err.println("No se ha podido registrar el MBean " + OBJECT_NAME + ": " + e.getMessage());
+            name = null;
+        }
+        this.objectName = name;
+
+        if (logSeconds > 0) {
+            logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "indexing-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.scheduleAtFixedRate(() -> System.out.println(progressLine()), logSeconds, logSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            logger = null;
+        }
+    }
+
+    // InfoStream para la configuración de un IndexWriter; cada writer necesita el suyo para contar sus segmentos
+    public InfoStream newInfoStream() {
+        StatsInfoStream infoStream = new StatsInfoStream();
+        infoStreams.add(infoStream);
+        return infoStream;
+    }
+
+    // Añade un writer y su pipeline a las métricas en vivo
+    public void track(IndexWriter writer, IndexingPipeline pipeline) {
+        writers.add(writer);
+        pipelines.add(pipeline);
+    }
+
+    // Envuelve el receptor de lotes del lector del corpus para contar documentos y bytes parseados
+    public CorpusReader.BatchHandler counting(CorpusReader.BatchHandler handler) {
+        return new CorpusReader.BatchHandler() {
+            @Override
+            public void accept(List<Doc> batch) throws IOException {
+                docsParsed.addAndGet(batch.size());
+                handler.accept(batch);
+            }
+
+            @Override
+            public void parsed(long bytes) {
+                bytesParsed.addAndGet(bytes);
+            }
+        };
+    }
+
+    /**
+     * Lee los segmentos del último commit de los índices terminados (ya cerrados) y el tamaño por tipo de
+     * fichero; los ficheros compuestos (.cfs) se desglosan en los ficheros que contienen.
+     */
+    public void finish(List<Path> indexPaths) throws IOException {
+        for (Path indexPath : indexPaths) {
+            try (Directory dir = FSDirectory.open(indexPath)) {
+                SegmentInfos infos = SegmentInfos.readLatestCommit(dir);
+                finalSegments += infos.size();
+                addFile(dir, infos.getSegmentsFileName());
+                for (SegmentCommitInfo info : infos) {
+                    if (info.info.getUseCompoundFile()) {
+                        try (Directory compound = info.info.getCodec().compoundFormat()
+                                .getCompoundReader(dir, info.info, IOContext.READONCE)) {
+                            for (String file : compound.listAll())
+                                addFile(compound, file);
+                        }
+                    }
+                    for (String file : info.files()) {
+                        if (!file.endsWith(COMPOUND_DATA) && !file.endsWith(COMPOUND_ENTRIES))
+                            addFile(dir, file);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addFile(Directory dir, String file) throws IOException {
+        indexBytesByType.merge(fileType(file), dir.fileLength(file), Long::sum);
+    }
+
+    public Summary summary() {
+        double seconds = elapsedSeconds();
+        long indexBytes = 0;
+        for (long bytes : indexBytesByType.values())
+            indexBytes += bytes;
+        return new Summary(docsParsed.get(), bytesParsed.get(), docsIndexed(), seconds, docsIndexed() / seconds,
+                bytesParsed.get() / MB / seconds, flushes.get(), flushNanos.get() / 1e9,
+                peakFlushRamBytes.get() / MB, merges.get(), mergeMillis.get() / 1e3,
+                (gcMillis() - startGcMillis) / 1e3, finalSegments, indexBytes, indexBytesByType);
+    }
+
+    public void printSummary() {
+        Summary summary = summary();
+        System.out.println("Parseados: " + summary.docsParsed() + " documentos, "
+                + String.format("%.1f", summary.bytesParsed() / MB) + " MB ("
+                + String.format("%.1f", summary.parsedMBPerSecond()) + " MB/s)");
+        System.out.println("Flushes: " + summary.flushes() + " (" + String.format("%.2f", summary.flushSeconds())
+                + " s, pico del buffer de RAM " + String.format("%.1f", summary.peakRamBufferMB()) + " MB), fusiones: "
+                + summary.merges() + " (" + String.format("%.2f", summary.mergeSeconds()) + " s), GC: "
+                + String.format("%.2f", summary.gcSeconds()) + " s");
+
+        StringBuilder types = new StringBuilder();
+        summary.indexBytesByType().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(e -> types.append(types.length() == 0 ? "" : ", ").append(e.getKey()).append(' ')
+                        .append(String.format("%.1f", e.getValue() / MB)).append(" MB"));
+        System.out.println("Índice: " + summary.segments() + " segmentos, "
+                + String.format("%.1f", summary.indexBytes() / MB) + " MB (" + types + ")");
+    }
+
+    public void writeJson(File file) throws IOException {
+        JsonMapper.builder().build().writerWithDefaultPrettyPrinter().writeValue(file, summary());
+    }
+
+    // Para la línea periódica y quita el MBean
+    @Override
+    public void close() {
+        if (logger != null)
+            logger.shutdownNow();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // ya no estaba registrado
+            }
+        }
+    }
+
+    private String progressLine() {
+        double seconds = elapsedSeconds();
+        return "Indexación: " + docsIndexed() + " documentos (" + String.format("%.1f", docsIndexed() / seconds)
+                + " docs/s), " + String.format("%.1f", bytesParsed.get() / MB) + " MB parseados ("
+                + String.format("%.1f", bytesParsed.get() / MB / seconds) + " MB/s), buffer de RAM "
+                + String.format("%.1f", ramBufferBytes() / MB) + " MB, " + flushes.get() + " flushes ("
+                + String.format("%.2f", flushNanos.get() / 1e9) + " s), " + merges.get() + " fusiones ("
+                + String.format("%.2f", mergeMillis.get() / 1e3) + " s), " + segments() + " segmentos, GC "
+                + String.format("%.2f", (gcMillis() - startGcMillis) / 1e3) + " s";
+    }
+
+    private long docsIndexed() {
+        long docs = 0;
+        for (IndexingPipeline pipeline : pipelines)
+            docs += pipeline.indexedDocs();
+        return docs;
+    }
+
+    private long segments() {
+        long count = 0;
+        for (StatsInfoStream infoStream : infoStreams)
+            count += infoStream.segments.get();
+        return count;
+    }
+
+    private long ramBufferBytes() {
+        long bytes = 0;
+        for (IndexWriter writer : writers)
+            bytes += writer.ramBytesUsed();
+        return bytes;
+    }
+
+    private double elapsedSeconds() {
+        return Math.max((System.nanoTime() - startTime) / 1e9, 1e-9);
+    }
+
+    // Tiempo acumulado de todos los recolectores de la JVM
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(gc.getCollectionTime(), 0);
+        return millis;
+    }
+
+    // Tipo de un fichero del índice: su extensión, o el prefijo para segments_N y similares
+    private static String fileType(String file) {
+        int dot = file.lastIndexOf('.');
+        if (dot >= 0)
+            return file.substring(dot + 1);
+        int underscore = file.indexOf('_');
+        return underscore > 0 ? file.substring(0, underscore) : file;
+    }
+
+    // Recoge los tiempos de flush y de fusión de los mensajes de un IndexWriter
+    private final class StatsInfoStream extends InfoStream {
+        // segmentos del writer según la última fusión, más los flushes posteriores
+        private final AtomicLong segments = new AtomicLong();
+
+        @Override
+        public void message(String component, String message) {
+            if ("DWPT".equals(component)) {
+                Matcher m = FLUSHED.matcher(message);
+                if (m.lookingAt()) {
+                    flushes.incrementAndGet();
+                    segments.incrementAndGet();
+                    long ramBytes = (long) (Double.parseDouble(m.group(1).replace(",", "")) * MB);
+                    peakFlushRamBytes.accumulateAndGet(ramBytes, Math::max);
+                    return;
+                }
+                m = FLUSH_TIME.matcher(message);
+                if (m.lookingAt())
+                    flushNanos.addAndGet((long) (Double.parseDouble(m.group(1)) * 1e6));
+            } else if (message.startsWith("after commitMerge: ")) {
+                Matcher m = SEGMENT.matcher(message.substring("after commitMerge: ".length()));
+                long count = 0;
+                while (m.find())
+                    count++;
+                segments.set(count);
+            } else {
+                Matcher m = MERGE_TIME.matcher(message);
+                if (m.lookingAt()) {
+                    merges.incrementAndGet();
+                    mergeMillis.addAndGet(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+
+        // sólo los componentes con los mensajes de flush y de fusión
+        @Override
+        public boolean isEnabled(String component) {
+            return "DWPT".equals(component) || "IW".equals(component);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Vista de las métricas para JMX, que lee los mismos contadores
+    private final class MetricsView implements Metrics {
+        @Override
+        public long getDocsParsed() {
+            return docsParsed.get();
+        }
+
+        @Override
+        public long getBytesParsed() {
+            return bytesParsed.get();
+        }
+
+        @Override
+        public long getDocsIndexed() {
+            return docsIndexed();
+        }
+
+        @Override
+        public double getDocsPerSecond() {
+            return docsIndexed() / elapsedSeconds();
+        }
+
+        @Override
+        public double getParsedMBPerSecond() {
+            return bytesParsed.get() / MB / elapsedSeconds();
+        }
+
+        @Override
+        public double getRamBufferMB() {
+            return ramBufferBytes() / MB;
+        }
+
+        @Override
+        public long getFlushCount() {
+            return flushes.get();
+        }
+
+        @Override
+        public double getFlushSeconds() {
+            return flushNanos.get() / 1e9;
+        }
+
+        @Override
+        public long getMergeCount() {
+            return merges.get();
+        }
+
+        @Override
+        public double getMergeSeconds() {
+            return mergeMillis.get() / 1e3;
+        }
+
+        @Override
+        public long getSegmentCount() {
+            return segments();
+        }
+
+        @Override
+        public double getGcSeconds() {
+            return (gcMillis() - startGcMillis) / 1e3;
+        }
+
+        @Override
+        public double getElapsedSeconds() {
+            return elapsedSeconds();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package practicari;
+
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latencias por query de una evaluación, separadas por etapas (parseo de la query, búsqueda, carga de los
+ * documentos del ranking y escritura de la salida), con sus percentiles y el throughput en queries por
+ * segundo. Se escriben en un CSV con una fila por query y en un resumen JSON, junto al CSV de métricas.
+ */
+public class LatencyReport {
+    public static final String[] STAGES = {"parse", "search", "hits", "output"};
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    // Percentiles, máximo y media de una etapa, en milisegundos
+    public record StageSummary(double p50Ms, double p90Ms, double p99Ms, double maxMs, double meanMs) {}
+
+    // Resumen de la evaluación, tal como se escribe en el JSON
+    public record Summary(String model, String index, int queries, int queryThreads, int searchThreads,
+                          double wallSeconds, double qps, Map<String, StageSummary> stages) {}
+
+    private final List<Integer> queryIds = new ArrayList<>();
+    // nanosegundos de cada etapa por query, y el total en la última posición
+    private final List<long[]> rows = new ArrayList<>();
+
+    // Añade las latencias de una query, en el orden de STAGES
+    public void add(int queryId, long... stageNanos) {
+        long[] row = Arrays.copyOf(stageNanos, STAGES.length + 1);
+        for (int s = 0; s < STAGES.length; s++)
+            row[STAGES.length] += stageNanos[s];
+        queryIds.add(queryId);
+        rows.add(row);
+    }
+
+    public Summary summary(String model, String index, int queryThreads, int searchThreads, long wallNanos) {
+        Map<String, StageSummary> stages = new LinkedHashMap<>();
+        for (int s = 0; s <= STAGES.length; s++)
+            stages.put(stageName(s), stageSummary(s));
+        double wallSeconds = wallNanos / 1e9;
+        return new Summary(model, index, rows.size(), queryThreads, searchThreads, wallSeconds,
+                wallSeconds > 0 ? rows.size() / wallSeconds : 0, stages);
+    }
+
+    // Línea resumen de la latencia total por query y del throughput
+    public String summaryLine(long wallNanos) {
+        StageSummary total = stageSummary(STAGES.length);
+        return String.format(Locale.ROOT, "Latencia por query: p50 %.3f ms; p90 %.3f ms; p99 %.3f ms; máx %.3f ms; "
+                        + "%.1f queries/s", total.p50Ms(), total.p90Ms(), total.p99Ms(), total.maxMs(),
+                wallNanos > 0 ? rows.size() / (wallNanos / 1e9) : 0);
+    }
+
+    // CSV con las latencias de cada query en ms y, al final, los percentiles, el máximo y la media de cada etapa
+    public void writeCsv(File file) throws FileNotFoundException {
+        try (PrintWriter csv = new PrintWriter(file)) {
+            StringBuilder header = new StringBuilder("Query");
+            for (int s = 0; s <= STAGES.length; s++)
+                header.append(',').append(stageName(s)).append("_ms");
+            csv.println(header);
+
+            for (int i = 0; i < rows.size(); i++) {
+                StringBuilder line = new StringBuilder().append(queryIds.get(i));
+                for (long nanos : rows.get(i))
+                    line.append(',').append(millis(nanos));
+                csv.println(line);
+            }
+
+            List<StageSummary> summaries = new ArrayList<>();
+            for (int s = 0; s <= STAGES.length; s++)
+                summaries.add(stageSummary(s));
+            String[] labels = {"p50", "p90", "p99", "max", "mean"};
+            for (int l = 0; l < labels.length; l++) {
+                StringBuilder line = new StringBuilder(labels[l]);
+                for (StageSummary summary : summaries) {
+                    double[] values = {summary.p50Ms(), summary.p90Ms(), summary.p99Ms(), summary.maxMs(),
+                            summary.meanMs()};
+                    line.append(',').append(values[l]);
+                }
+                csv.println(line);
+            }
+        }
+    }
+
+    public void writeJson(File file, Summary summary) throws IOException {
+        JsonMapper.builder().build().writerWithDefaultPrettyPrinter().writeValue(file, summary);
+    }
+
+    private StageSummary stageSummary(int stage) {
+        if (rows.isEmpty())
+            return new StageSummary(0, 0, 0, 0, 0);
+        long[] values = new long[rows.size()];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rows.get(i)[stage];
+            sum += values[i];
+        }
+        Arrays.sort(values);
+        double[] percentiles = new double[PERCENTILES.length];
+        for (int p = 0; p < PERCENTILES.length; p++)
+            percentiles[p] = millis(percentile(values, PERCENTILES[p]));
+        return new StageSummary(percentiles[0], percentiles[1], percentiles[2], millis(values[values.length - 1]),
+                millis(sum) / values.length);
+    }
+
+    // Percentil por el método del rango más cercano sobre los valores ordenados
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static String stageName(int stage) {
+        return stage < STAGES.length ? STAGES[stage] : "total";
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
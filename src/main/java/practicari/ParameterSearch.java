@@ -0,0 +1,166 @@
+package practicari;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Búsqueda adaptativa de los parámetros de un modelo (lambda de Jelinek-Mercer, k1 o k1 y b de BM25) en
+ * intervalos continuos, de grueso a fino.
+ *
+ * Primero evalúa una rejilla gruesa de {@value #COARSE_POINTS} valores por dimensión que cubre los intervalos.
+ * Después, en cada ronda, reduce el paso a la mitad y evalúa sólo los vecinos del mejor punto encontrado,
+ * mejore o no la métrica, hasta que reducirlo otra vez lo dejaría por debajo de {@value #MIN_STEP}. Con ese
+ * paso más fino sigue evaluando vecinos del mejor punto mientras cada ronda mejore la métrica al menos la
+ * tolerancia. Así alcanza la resolución de una rejilla densa evaluando una pequeña parte de sus puntos, y una
+ * ronda sin mejora con un paso grueso no corta la búsqueda antes de afinar.
+ *
+ * Los puntos de cada ronda se piden juntos al {@link Objective}, para que pueda evaluarlos en paralelo, y
+ * ningún punto se evalúa dos veces.
+ */
+public class ParameterSearch {
+    private static final int COARSE_POINTS = 5;
+    private static final double MIN_STEP = 0.001;
+    private static final double ROUNDING = 1e4;     // los valores se redondean a 4 decimales
+
+    // Métrica media de cada punto de una ronda; cada punto tiene un valor por dimensión
+    public interface Objective {
+        double[] evaluate(List<double[]> points) throws IOException, InterruptedException, ExecutionException;
+    }
+
+    private final double[] lower;
+    private final double[] upper;
+    private final double tolerance;
+    private final List<double[]> points = new ArrayList<>();       // en orden de evaluación
+    private final List<Double> values = new ArrayList<>();
+    private final Set<List<Double>> evaluated = new HashSet<>();
+    private int best = -1;
+    private int rounds;
+
+    public ParameterSearch(double[] lower, double[] upper, double tolerance) {
+        if (lower.length == 0 || lower.length != upper.length)
+            throw new IllegalArgumentException("Los intervalos de los parámetros no son válidos");
+        for (int d = 0; d < lower.length; d++) {
+            if (!(lower[d] < upper[d]))
+                throw new IllegalArgumentException("Intervalo vacío: " + lower[d] + "-" + upper[d]);
+        }
+        this.lower = lower.clone();
+        this.upper = upper.clone();
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Busca el punto con la métrica más alta y lo devuelve. Entre puntos empatados se queda con el primero
+     * evaluado.
+     */
+    public double[] optimize(Objective objective) throws IOException, InterruptedException, ExecutionException {
+        int dims = lower.length;
+        double[] step = new double[dims];
+        double[] center = new double[dims];
+        for (int d = 0; d < dims; d++) {
+            step[d] = (upper[d] - lower[d]) / (COARSE_POINTS - 1);
+            center[d] = lower[d] + step[d] * (COARSE_POINTS / 2);
+        }
+
+        // rejilla gruesa sobre todo el intervalo
+        evaluate(objective, neighbours(center, step, COARSE_POINTS / 2));
+        rounds = 1;
+
+        boolean finest = false;
+        while (true) {
+            if (!finest) {
+                finest = true;
+                for (int d = 0; d < dims; d++) {
+                    if (step[d] / 2 >= MIN_STEP)
+                        finest = false;
+                }
+                if (!finest) {
+                    for (int d = 0; d < dims; d++)
+                        step[d] /= 2;
+                }
+            }
+
+            double previous = bestValue();
+            List<double[]> batch = neighbours(points.get(best), step, 1);
+            if (batch.isEmpty()) {
+                if (finest)
+                    break;      // el mejor punto no ha cambiado y ya no se puede afinar más
+                continue;       // todos los vecinos ya estaban evaluados: se sigue afinando
+            }
+            evaluate(objective, batch);
+            rounds++;
+            // la tolerancia sólo se aplica con el paso más fino; antes, una ronda sin mejora sólo reduce el paso
+            if (finest && bestValue() - previous < tolerance)
+                break;
+        }
+        return points.get(best);
+    }
+
+    // Puntos a distancia de hasta radius pasos del centro en cada dimensión, dentro de los intervalos y aún
+    // sin evaluar
+    private List<double[]> neighbours(double[] center, double[] step, int radius) {
+        List<double[]> batch = new ArrayList<>();
+        Set<List<Double>> keys = new HashSet<>();
+        int side = 2 * radius + 1;
+        int total = 1;
+        for (int d = 0; d < center.length; d++)
+            total *= side;
+
+        for (int i = 0; i < total; i++) {
+            double[] point = new double[center.length];
+            int offsets = i;
+            for (int d = 0; d < center.length; d++) {
+                double value = center[d] + (offsets % side - radius) * step[d];
+                offsets /= side;
+                value = Math.min(upper[d], Math.max(lower[d], value));
+                point[d] = Math.round(value * ROUNDING) / ROUNDING;
+            }
+            List<Double> key = key(point);
+            if (!evaluated.contains(key) && keys.add(key))
+                batch.add(point);
+        }
+        return batch;
+    }
+
+    private void evaluate(Objective objective, List<double[]> batch)
+            throws IOException, InterruptedException, ExecutionException {
+        double[] batchValues = objective.evaluate(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            points.add(batch.get(i));
+            values.add(batchValues[i]);
+            evaluated.add(key(batch.get(i)));
+            if (best < 0 || batchValues[i] > values.get(best))
+                best = points.size() - 1;
+        }
+    }
+
+    private static List<Double> key(double[] point) {
+        List<Double> key = new ArrayList<>(point.length);
+        for (double value : point)
+            key.add(value);
+        return key;
+    }
+
+    private double bestValue() {
+        return values.get(best);
+    }
+
+    // Puntos evaluados, en el orden en que se pidieron al Objective
+    public List<double[]> points() {
+        return points;
+    }
+
+    public int rounds() {
+        return rounds;
+    }
+
+    @Override
+    public String toString() {
+        return points.size() + " puntos evaluados en " + rounds + " rondas; mejor "
+                + Arrays.toString(points.get(best)) + " con " + bestValue();
+    }
+}
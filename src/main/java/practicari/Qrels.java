@@ -0,0 +1,383 @@
+package practicari;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Juicios de relevancia (test.tsv) en arrays de tipos primitivos: los ids del corpus se guardan una sola vez
+ * en un diccionario ordenado, y cada query tiene un rango de juicios ordenados por ordinal del diccionario,
+ * con el grado de relevancia en un byte.
+ *
+ * La primera lectura del tsv guarda al lado un fichero binario (test.tsv.bin) con los mismos arrays; las
+ * siguientes ejecuciones lo mapean en memoria en lugar de volver a parsear el tsv, mientras el tsv no cambie.
+ */
+public class Qrels {
+    private static final int MAGIC = 0x5152454C;      // "QREL"
+    private static final int VERSION = 2;     // 2: ids ordenados por bytes UTF-8
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+    public static final String BINARY_SUFFIX = ".bin";
+
+    private final IntBuffer queryIds;       // ids de query ordenados
+    private final IntBuffer offsets;        // inicio del rango de juicios de cada query (numQueries + 1)
+    private final IntBuffer docOrds;        // ordinal del id del corpus de cada juicio
+    private final ByteBuffer grades;        // grado de relevancia de cada juicio
+    private final IntBuffer dictOffsets;    // inicio de cada id del corpus en dictBytes (numDocIds + 1)
+    private final ByteBuffer dictBytes;     // ids del corpus en UTF-8, ordenados
+
+    private Qrels(IntBuffer queryIds, IntBuffer offsets, IntBuffer docOrds, ByteBuffer grades, IntBuffer dictOffsets,
+                  ByteBuffer dictBytes) {
+        this.queryIds = queryIds;
+        this.offsets = offsets;
+        this.docOrds = docOrds;
+        this.grades = grades;
+        this.dictOffsets = dictOffsets;
+        this.dictBytes = dictBytes;
+    }
+
+    // Carga los juicios para las herramientas de línea de comandos, terminando si no se pueden leer
+    public static Qrels read(File test) {
+        try {
+            return load(test);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            System.err.println("No se ha encontrado el archivo de tests de relevancia.");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Excepción de E/S al leer el archivo de tests de relevancia: " + e.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Carga los juicios del tsv, usando el fichero binario si está al día o creándolo si no existe.
+     */
+    public static Qrels load(File tsv) throws IOException {
+        Path tsvPath = tsv.toPath();
+        Path binPath = Path.of(tsv.getPath() + BINARY_SUFFIX);
+        long tsvLength = Files.size(tsvPath);
+        long tsvModified = Files.getLastModifiedTime(tsvPath).toMillis();
+
+        if (Files.exists(binPath)) {
+            Qrels qrels = map(binPath, tsvLength, tsvModified);
+            if (qrels != null)
+                return qrels;
+        }
+
+        Qrels qrels = parse(tsv);
+        try {
+            qrels.write(binPath, tsvLength, tsvModified);
+        } catch (IOException e) {
+            // sin fichero binario la próxima ejecución vuelve a parsear el tsv, pero los juicios son válidos
+            System.err.println("No se ha podido guardar " + binPath + ": " + e.getMessage());
+        }
+        return qrels;
+    }
+
+    // Parsea el tsv (con línea de cabecera): query-id, corpus-id, grado. Si un juicio se repite, vale el último
+    static Qrels parse(File tsv) throws IOException {
+        int size = 0;
+        int[] lineQueries = new int[1024];
+        int[] lineOrds = new int[1024];
+        byte[] lineGrades = new byte[1024];
+        Map<String, Integer> interned = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(tsv, StandardCharsets.UTF_8))) {
+            String line = reader.readLine();      // ignoramos la línea de cabecera
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                int tab1 = line.indexOf('\t');
+                int tab2 = line.indexOf('\t', tab1 + 1);
+                if (tab1 < 0 || tab2 < 0)
+                    throw new IOException("Línea de juicios de relevancia no válida: " + line);
+
+                if (size == lineQueries.length) {
+                    lineQueries = Arrays.copyOf(lineQueries, size * 2);
+                    lineOrds = Arrays.copyOf(lineOrds, size * 2);
+                    lineGrades = Arrays.copyOf(lineGrades, size * 2);
+                }
+                String docId = line.substring(tab1 + 1, tab2);
+                Integer ord = interned.get(docId);
+                if (ord == null) {
+                    ord = interned.size();
+                    interned.put(docId, ord);
+                }
+                lineQueries[size] = parseInt(line, 0, tab1);
+                lineOrds[size] = ord;
+                int tab3 = line.indexOf('\t', tab2 + 1);
+                lineGrades[size] = (byte) parseInt(line, tab2 + 1, tab3 < 0 ? line.length() : tab3);
+                size++;
+            }
+        }
+
+        // diccionario ordenado de ids del corpus y traducción de los ordinales provisionales. Se ordena por los
+        // bytes UTF-8 sin signo, el mismo orden que usa la búsqueda binaria; el orden de String (UTF-16) no
+        // coincide con él fuera de ASCII
+        String[] docIds = interned.keySet().toArray(new String[0]);
+        Arrays.sort(docIds, Comparator.comparing((String id) -> id.getBytes(StandardCharsets.UTF_8),
+                Arrays::compareUnsigned));
+        int[] sortedOrd = new int[docIds.length];
+        for (int i = 0; i < docIds.length; i++)
+            sortedOrd[interned.get(docIds[i])] = i;
+
+        // ids de query distintos, ordenados
+        int[] uniqueQueries = Arrays.copyOf(lineQueries, size);
+        Arrays.sort(uniqueQueries);
+        int numQueries = 0;
+        for (int i = 0; i < size; i++) {
+            if (numQueries == 0 || uniqueQueries[i] != uniqueQueries[numQueries - 1])
+                uniqueQueries[numQueries++] = uniqueQueries[i];
+        }
+        uniqueQueries = Arrays.copyOf(uniqueQueries, numQueries);
+
+        // agrupamos las líneas por query conservando el orden del fichero
+        int[] bucketStart = new int[numQueries + 1];
+        int[] lineQueryIndex = new int[size];
+        for (int i = 0; i < size; i++) {
+            lineQueryIndex[i] = Arrays.binarySearch(uniqueQueries, lineQueries[i]);
+            bucketStart[lineQueryIndex[i] + 1]++;
+        }
+        for (int q = 0; q < numQueries; q++)
+            bucketStart[q + 1] += bucketStart[q];
+        int[] bucketFill = Arrays.copyOf(bucketStart, numQueries);
+        int[] lines = new int[size];
+        for (int i = 0; i < size; i++)
+            lines[bucketFill[lineQueryIndex[i]]++] = i;
+
+        // dentro de cada query, juicios ordenados por ordinal; si se repite un documento se queda la última línea
+        int[] offsets = new int[numQueries + 1];
+        int[] docOrds = new int[size];
+        byte[] grades = new byte[size];
+        int numJudgments = 0;
+        for (int q = 0; q < numQueries; q++) {
+            long[] keys = new long[bucketStart[q + 1] - bucketStart[q]];
+            for (int i = 0; i < keys.length; i++) {
+                int line = lines[bucketStart[q] + i];
+                keys[i] = ((long) sortedOrd[lineOrds[line]] << 32) | line;
+            }
+            Arrays.sort(keys);
+            offsets[q] = numJudgments;
+            for (int i = 0; i < keys.length; i++) {
+                if (i + 1 < keys.length && (keys[i + 1] >>> 32) == (keys[i] >>> 32))
+                    continue;
+                docOrds[numJudgments] = (int) (keys[i] >>> 32);
+                grades[numJudgments] = lineGrades[(int) keys[i]];
+                numJudgments++;
+            }
+        }
+        offsets[numQueries] = numJudgments;
+
+        // diccionario en UTF-8
+        int[] dictOffsets = new int[docIds.length + 1];
+        byte[][] encoded = new byte[docIds.length][];
+        for (int i = 0; i < docIds.length; i++) {
+            encoded[i] = docIds[i].getBytes(StandardCharsets.UTF_8);
+            dictOffsets[i + 1] = dictOffsets[i] + encoded[i].length;
+        }
+        byte[] dictBytes = new byte[dictOffsets[docIds.length]];
+        for (int i = 0; i < docIds.length; i++)
+            System.arraycopy(encoded[i], 0, dictBytes, dictOffsets[i], encoded[i].length);
+
+        return new Qrels(IntBuffer.wrap(uniqueQueries), IntBuffer.wrap(offsets),
+                IntBuffer.wrap(Arrays.copyOf(docOrds, numJudgments)),
+                ByteBuffer.wrap(Arrays.copyOf(grades, numJudgments)), IntBuffer.wrap(dictOffsets),
+                ByteBuffer.wrap(dictBytes));
+    }
+
+    private static int parseInt(String line, int from, int to) throws IOException {
+        try {
+            return Integer.parseInt(line, from, to, 10);
+        } catch (NumberFormatException e) {
+            throw new IOException("Línea de juicios de relevancia no válida: " + line, e);
+        }
+    }
+
+    // Mapea el fichero binario; devuelve null si no corresponde a la versión actual del tsv
+    private static Qrels map(Path binPath, long tsvLength, long tsvModified) throws IOException {
+        try (FileChannel channel = FileChannel.open(binPath, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES)
+                return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != tsvLength
+                    || buffer.getLong() != tsvModified)
+                return null;
+
+            int numQueries = buffer.getInt();
+            int numJudgments = buffer.getInt();
+            int numDocIds = buffer.getInt();
+            int dictLength = buffer.getInt();
+            long expected = HEADER_BYTES + 4L * numQueries + 4L * (numQueries + 1) + 5L * numJudgments
+                    + 4L * (numDocIds + 1) + dictLength;
+            if (channel.size() != expected)
+                return null;
+
+            IntBuffer queryIds = slice(buffer, 4 * numQueries).asIntBuffer();
+            IntBuffer offsets = slice(buffer, 4 * (numQueries + 1)).asIntBuffer();
+            IntBuffer docOrds = slice(buffer, 4 * numJudgments).asIntBuffer();
+            ByteBuffer grades = slice(buffer, numJudgments);
+            IntBuffer dictOffsets = slice(buffer, 4 * (numDocIds + 1)).asIntBuffer();
+            ByteBuffer dictBytes = slice(buffer, dictLength);
+            return new Qrels(queryIds, offsets, docOrds, grades, dictOffsets, dictBytes);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private void write(Path binPath, long tsvLength, long tsvModified) throws IOException {
+        int numQueries = numQueries();
+        int numJudgments = docOrds.limit();
+        int numDocIds = numDocIds();
+        int dictLength = dictBytes.limit();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * numQueries + 4 * (numQueries + 1)
+                + 5 * numJudgments + 4 * (numDocIds + 1) + dictLength);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(tsvLength).putLong(tsvModified);
+        buffer.putInt(numQueries).putInt(numJudgments).putInt(numDocIds).putInt(dictLength);
+        for (int i = 0; i < numQueries; i++)
+            buffer.putInt(queryIds.get(i));
+        for (int i = 0; i <= numQueries; i++)
+            buffer.putInt(offsets.get(i));
+        for (int i = 0; i < numJudgments; i++)
+            buffer.putInt(docOrds.get(i));
+        for (int i = 0; i < numJudgments; i++)
+            buffer.put(grades.get(i));
+        for (int i = 0; i <= numDocIds; i++)
+            buffer.putInt(dictOffsets.get(i));
+        buffer.put(dictBytes.duplicate().position(0));
+
+        // escribimos en un temporal y lo movemos, para no dejar nunca un fichero binario a medias
+        Path tmp = Files.createTempFile(binPath.toAbsolutePath().getParent(), binPath.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, buffer.array());
+            Files.move(tmp, binPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public int numQueries() {
+        return queryIds.limit();
+    }
+
+    public int queryId(int index) {
+        return queryIds.get(index);
+    }
+
+    // Posición de la query en el array de queries, o negativa si no tiene juicios
+    public int queryIndex(int queryId) {
+        int low = 0;
+        int high = numQueries() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = queryIds.get(mid);
+            if (value < queryId)
+                low = mid + 1;
+            else if (value > queryId)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    // Rango [start(q), end(q)) de juicios de la query en la posición q
+    public int start(int queryIndex) {
+        return offsets.get(queryIndex);
+    }
+
+    public int end(int queryIndex) {
+        return offsets.get(queryIndex + 1);
+    }
+
+    public int docOrd(int judgment) {
+        return docOrds.get(judgment);
+    }
+
+    public int grade(int judgment) {
+        return grades.get(judgment);
+    }
+
+    public int numDocIds() {
+        return dictOffsets.limit() - 1;
+    }
+
+    public String docId(int ord) {
+        int start = dictOffsets.get(ord);
+        byte[] bytes = new byte[dictOffsets.get(ord + 1) - start];
+        dictBytes.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Ordinal de un id del corpus en el diccionario, o negativo si no está juzgado para ninguna query
+    public int docOrd(String docId) {
+        byte[] key = docId.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = numDocIds() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareDocId(mid, key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    // Grado de relevancia de un documento para una query; 0 si no está juzgado
+    public int grade(int queryId, String docId) {
+        int q = queryIndex(queryId);
+        int ord = docOrd(docId);
+        if (q < 0 || ord < 0)
+            return 0;
+
+        int low = start(q);
+        int high = end(q) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = docOrds.get(mid);
+            if (value < ord)
+                low = mid + 1;
+            else if (value > ord)
+                high = mid - 1;
+            else
+                return grades.get(mid);
+        }
+        return 0;
+    }
+
+    // Compara el id del ordinal con la clave en UTF-8; el orden coincide con el de String para ids ASCII
+    private int compareDocId(int ord, byte[] key) {
+        int start = dictOffsets.get(ord);
+        int length = dictOffsets.get(ord + 1) - start;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(dictBytes.get(start + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(length, key.length);
+    }
+}
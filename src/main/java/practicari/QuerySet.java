@@ -0,0 +1,319 @@
+package practicari;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queries de queries.jsonl ya analizadas y parseadas sobre el campo text, ordenadas por id, para que cada
+ * herramienta prepare las queries una sola vez y no en cada búsqueda.
+ *
+ * La primera carga guarda al lado un fichero binario (queries.jsonl.qset) con cada query y la estructura de su
+ * Query parseada, con los términos ya analizados; las siguientes ejecuciones lo leen en lugar de leer el jsonl
+ * y volver a pasar el analizador, mientras el jsonl y la versión de Lucene no cambien.
+ *
+ * Con {@link #withTermStates(IndexReader)} las queries llevan además los {@link TermStates} de sus términos en
+ * el índice abierto, así los buscadores de un barrido de parámetros, que comparten el reader, no vuelven a
+ * buscar los términos en el diccionario en cada búsqueda.
+ */
+public class QuerySet {
+    private static final int MAGIC = 0x51534554;      // "QSET"
+    private static final int VERSION = 1;
+    public static final String BINARY_SUFFIX = ".qset";
+    private static final String FIELD = "text";
+
+    // nodos de la estructura de una query en el fichero binario
+    private static final byte TERM = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BOOST = 2;
+    private static final byte PHRASE = 3;
+
+    // Query de queries.jsonl con su Query parseada
+    public record Compiled(QueryJsonl query, Query parsed) {
+        public int id() {
+            return query.id();
+        }
+
+        public String text() {
+            return query.metadata().query();
+        }
+    }
+
+    private final List<Compiled> queries;
+    private final Map<Integer, Compiled> byId = new HashMap<>();
+
+    private QuerySet(List<Compiled> queries) {
+        this.queries = queries;
+        for (Compiled query : queries)
+            byId.put(query.id(), query);
+    }
+
+    // Carga las queries para las herramientas de línea de comandos, terminando si no se pueden leer
+    public static QuerySet read(File jsonl) {
+        try {
+            return load(jsonl);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            System.err.println("No se ha encontrado el archivo de queries.");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Excepción de E/S al leer el archivo de queries: " + e.getMessage());
+            System.exit(1);
+        } catch (ParseException e) {
+            System.err.println("Error de parsing: " + e.getMessage());
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Carga las queries del jsonl, usando el fichero binario si está al día o creándolo si no existe.
+     */
+    public static QuerySet load(File jsonl) throws IOException, ParseException {
+        Path jsonlPath = jsonl.toPath();
+        Path binPath = Path.of(jsonl.getPath() + BINARY_SUFFIX);
+        long jsonlLength = Files.size(jsonlPath);
+        long jsonlModified = Files.getLastModifiedTime(jsonlPath).toMillis();
+
+        if (Files.exists(binPath)) {
+            QuerySet querySet = readBinary(binPath, jsonlLength, jsonlModified);
+            if (querySet != null)
+                return querySet;
+        }
+
+        QuerySet querySet = compile(jsonl);
+        try {
+            querySet.write(binPath, jsonlLength, jsonlModified);
+        } catch (IOException | IllegalArgumentException e) {
+            // sin fichero binario la próxima ejecución vuelve a parsear el jsonl, pero las queries son válidas
+            System.err.println("No se ha podido guardar " + binPath + ": " + e.getMessage());
+        }
+        return querySet;
+    }
+
+    // Lee el jsonl y parsea cada query con el mismo analizador que el índice
+    static QuerySet compile(File jsonl) throws IOException, ParseException {
+        QueryParser parser = new QueryParser(FIELD, new StandardAnalyzer());
+        List<Compiled> queries = new ArrayList<>();
+        ObjectReader reader = JsonMapper.builder().findAndAddModules().build().readerFor(QueryJsonl.class);
+        try (MappingIterator<QueryJsonl> itr = reader.readValues(jsonl)) {
+            while (itr.hasNext()) {
+                QueryJsonl query = itr.next();
+                queries.add(new Compiled(query, parser.parse(query.metadata().query())));
+            }
+        }
+        queries.sort(Comparator.comparingInt(Compiled::id));
+        return new QuerySet(queries);
+    }
+
+    public List<Compiled> all() {
+        return queries;
+    }
+
+    // Queries con id entre from y to, ambos incluidos
+    public List<Compiled> range(int from, int to) {
+        List<Compiled> range = new ArrayList<>();
+        for (Compiled query : queries) {
+            if (query.id() >= from && query.id() <= to)
+                range.add(query);
+        }
+        return range;
+    }
+
+    // Query con ese id, o null si no existe
+    public Compiled get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Las mismas queries con los {@link TermStates} de cada término en el reader: sólo sirven para buscar con
+     * ese reader (con otro, Lucene vuelve a buscar los términos). Cada término se busca una sola vez aunque
+     * aparezca en varias queries.
+     */
+    public QuerySet withTermStates(IndexReader reader) throws IOException {
+        IndexReaderContext context = reader.getContext();
+        Map<Term, TermStates> states = new HashMap<>();
+        List<Compiled> bound = new ArrayList<>(queries.size());
+        for (Compiled query : queries)
+            bound.add(new Compiled(query.query(), bind(query.parsed(), context, states)));
+        return new QuerySet(bound);
+    }
+
+    private static Query bind(Query query, IndexReaderContext context, Map<Term, TermStates> states)
+            throws IOException {
+        if (query instanceof TermQuery termQuery) {
+            Term term = termQuery.getTerm();
+            TermStates termStates = states.get(term);
+            if (termStates == null) {
+                termStates = TermStates.build(context, term, true);
+                states.put(term, termStates);
+            }
+            return new TermQuery(term, termStates);
+        } else if (query instanceof BooleanQuery booleanQuery) {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder()
+                    .setMinimumNumberShouldMatch(booleanQuery.getMinimumNumberShouldMatch());
+            for (BooleanClause clause : booleanQuery.clauses())
+                builder.add(bind(clause.getQuery(), context, states), clause.getOccur());
+            return builder.build();
+        } else if (query instanceof BoostQuery boostQuery) {
+            return new BoostQuery(bind(boostQuery.getQuery(), context, states), boostQuery.getBoost());
+        }
+        return query;
+    }
+
+    // Lee el fichero binario; devuelve null si no corresponde a la versión actual del jsonl o de Lucene, o si no
+    // se puede leer, y entonces se vuelve a parsear el jsonl
+    private static QuerySet readBinary(Path binPath, long jsonlLength, long jsonlModified) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(binPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != jsonlLength
+                    || in.readLong() != jsonlModified || !in.readUTF().equals(Version.LATEST.toString()))
+                return null;
+
+            int numQueries = in.readInt();
+            // la capacidad se acota por si el número viene de un fichero corrupto
+            List<Compiled> queries = new ArrayList<>(Math.max(0, Math.min(numQueries, 1024)));
+            for (int i = 0; i < numQueries; i++) {
+                int id = in.readInt();
+                String text = readString(in);
+                String query = readString(in);
+                String narrative = readString(in);
+                queries.add(new Compiled(new QueryJsonl(id, text, new QueryJsonl.Metadata(query, narrative)),
+                        readQuery(in)));
+            }
+            return new QuerySet(queries);
+        } catch (IOException | RuntimeException e) {
+            return null;        // fichero ilegible, truncado, corrupto o con un nodo desconocido
+        }
+    }
+
+    private void write(Path binPath, long jsonlLength, long jsonlModified) throws IOException {
+        // escribimos en un temporal y lo movemos, para no dejar nunca un fichero binario a medias
+        Path tmp = Files.createTempFile(binPath.toAbsolutePath().getParent(), binPath.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(jsonlLength);
+                out.writeLong(jsonlModified);
+                out.writeUTF(Version.LATEST.toString());
+                out.writeInt(queries.size());
+                for (Compiled compiled : queries) {
+                    QueryJsonl query = compiled.query();
+                    out.writeInt(query.id());
+                    writeString(out, query.text());
+                    writeString(out, query.metadata().query());
+                    writeString(out, query.metadata().narrative());
+                    writeQuery(out, compiled.parsed());
+                }
+            }
+            Files.move(tmp, binPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Sólo se guardan los tipos de Query que produce QueryParser con texto libre; con otros no hay fichero binario
+    private static void writeQuery(DataOutputStream out, Query query) throws IOException {
+        if (query instanceof TermQuery termQuery) {
+            out.writeByte(TERM);
+            out.writeUTF(termQuery.getTerm().field());
+            out.writeUTF(termQuery.getTerm().text());
+        } else if (query instanceof BooleanQuery booleanQuery) {
+            out.writeByte(BOOLEAN);
+            out.writeInt(booleanQuery.getMinimumNumberShouldMatch());
+            out.writeInt(booleanQuery.clauses().size());
+            for (BooleanClause clause : booleanQuery.clauses()) {
+                out.writeByte(clause.getOccur().ordinal());
+                writeQuery(out, clause.getQuery());
+            }
+        } else if (query instanceof BoostQuery boostQuery) {
+            out.writeByte(BOOST);
+            out.writeFloat(boostQuery.getBoost());
+            writeQuery(out, boostQuery.getQuery());
+        } else if (query instanceof PhraseQuery phraseQuery) {
+            out.writeByte(PHRASE);
+            out.writeUTF(phraseQuery.getField());
+            out.writeInt(phraseQuery.getSlop());
+            Term[] terms = phraseQuery.getTerms();
+            int[] positions = phraseQuery.getPositions();
+            out.writeInt(terms.length);
+            for (int i = 0; i < terms.length; i++) {
+                out.writeUTF(terms[i].text());
+                out.writeInt(positions[i]);
+            }
+        } else {
+            throw new IllegalArgumentException("tipo de query no soportado: " + query.getClass().getSimpleName());
+        }
+    }
+
+    private static Query readQuery(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TERM:
+                return new TermQuery(new Term(in.readUTF(), in.readUTF()));
+            case BOOLEAN: {
+                BooleanQuery.Builder builder = new BooleanQuery.Builder().setMinimumNumberShouldMatch(in.readInt());
+                int numClauses = in.readInt();
+                for (int i = 0; i < numClauses; i++) {
+                    BooleanClause.Occur occur = BooleanClause.Occur.values()[in.readByte()];
+                    builder.add(readQuery(in), occur);
+                }
+                return builder.build();
+            }
+            case BOOST: {
+                float boost = in.readFloat();
+                return new BoostQuery(readQuery(in), boost);
+            }
+            case PHRASE: {
+                String field = in.readUTF();
+                PhraseQuery.Builder builder = new PhraseQuery.Builder().setSlop(in.readInt());
+                int numTerms = in.readInt();
+                for (int i = 0; i < numTerms; i++)
+                    builder.add(new Term(field, in.readUTF()), in.readInt());
+                return builder.build();
+            }
+            default:
+                throw new IllegalArgumentException("nodo de query desconocido: " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
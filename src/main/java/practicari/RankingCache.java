@@ -0,0 +1,235 @@
+package practicari;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché en disco de rankings, compartida por {@link SearchEvalTrecCovid} y {@link TrainingTestTrecCovid}.
+ *
+ * La clave combina la versión del índice (generación del commit e identificadores de los segmentos), la
+ * query ya parseada, la similitud con sus parámetros y la profundidad del ranking, así que un ranking guardado
+ * sólo se reutiliza si la búsqueda devolvería exactamente lo mismo. Cada ranking se guarda en un fichero con
+ * los ids de documento y las puntuaciones; cuando la carpeta supera el tamaño máximo se borran los ficheros
+ * usados hace más tiempo.
+ */
+public class RankingCache {
+    private static final int MAGIC = 0x52414E4B;      // "RANK"
+    private static final String SUFFIX = ".rank";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final String indexVersion;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RankingCache(Path dir, long maxBytes, IndexReader reader) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.indexVersion = indexVersion(reader);
+        Files.createDirectories(dir);
+        for (Entry entry : entries())
+            totalBytes.addAndGet(entry.size());
+    }
+
+    /**
+     * Versión del índice abierto: cambia con cada commit, y distingue índices distintos aunque tengan la
+     * misma generación, porque incluye los identificadores únicos de los segmentos y de sus borrados.
+     */
+    static String indexVersion(IndexReader reader) {
+        StringBuilder version = new StringBuilder();
+        appendCommits(reader.getContext(), version);
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = FilterLeafReader.unwrap(leaf.reader());
+            if (leafReader instanceof SegmentReader segmentReader) {
+                version.append(';').append(StringHelper.idToString(segmentReader.getSegmentInfo().info.getId()))
+                        .append('/').append(segmentReader.getSegmentInfo().getDelGen());
+            } else {
+                version.append(';').append(leafReader.maxDoc()).append('/').append(leafReader.numDocs());
+            }
+        }
+        return version.toString();
+    }
+
+    // Generación y versión de cada DirectoryReader (uno por shard si el índice está dividido)
+    private static void appendCommits(IndexReaderContext context, StringBuilder version) {
+        if (context.reader() instanceof DirectoryReader directoryReader) {
+            try {
+                version.append(directoryReader.getIndexCommit().getGeneration());
+            } catch (IOException e) {
+                version.append('?');
+            }
+            version.append('.').append(directoryReader.getVersion()).append(' ');
+        } else if (context.children() != null) {
+            for (IndexReaderContext child : context.children())
+                appendCommits(child, version);
+        }
+    }
+
+    /**
+     * Busca la query con la similitud del buscador, devolviendo el ranking guardado si lo hay.
+     */
+    public TopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+        String key = key(query, searcher, n);
+        TopDocs topDocs = get(key);
+        if (topDocs == null) {
+            topDocs = searcher.search(query, n);
+            put(key, topDocs);
+        }
+        return topDocs;
+    }
+
+    public String key(Query query, IndexSearcher searcher, int n) {
+        String text = indexVersion + '\n' + query + '\n' + similarityKey(searcher.getSimilarity()) + '\n' + n;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Identifica la similitud por su clase y los bits exactos de sus parámetros. El toString de Lucene redondea
+     * (Jelinek-Mercer escribe lambda con 6 decimales), y dos valores distintos no pueden compartir rankings.
+     */
+    static String similarityKey(Similarity similarity) {
+        if (similarity instanceof BM25Similarity) {
+            BM25Similarity bm25 = (BM25Similarity) similarity;
+            return "BM25(" + Float.floatToIntBits(bm25.getK1()) + "," + Float.floatToIntBits(bm25.getB()) + ","
+                    + bm25.getDiscountOverlaps() + ")";
+        } else if (similarity instanceof LMJelinekMercerSimilarity) {
+            return "JM(" + Float.floatToIntBits(((LMJelinekMercerSimilarity) similarity).getLambda()) + ")";
+        }
+        return similarity.getClass().getName() + "(" + similarity + ")";
+    }
+
+    // Ranking guardado con esa clave, o null si no está en la caché
+    public TopDocs get(String key) throws IOException {
+        Path file = dir.resolve(key + SUFFIX);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+            // la fecha de modificación hace de marca de último uso para el LRU
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < 20 || buffer.getInt() != MAGIC) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long totalHitsValue = buffer.getLong();
+        TotalHits.Relation relation = TotalHits.Relation.values()[buffer.getInt()];
+        int size = buffer.getInt();
+        if (buffer.remaining() != size * 8) {
+            misses.incrementAndGet();
+            return null;
+        }
+        ScoreDoc[] scoreDocs = new ScoreDoc[size];
+        for (int i = 0; i < size; i++)
+            scoreDocs[i] = new ScoreDoc(buffer.getInt(), buffer.getFloat());
+        hits.incrementAndGet();
+        return new TopDocs(new TotalHits(totalHitsValue, relation), scoreDocs);
+    }
+
+    public void put(String key, TopDocs topDocs) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20 + topDocs.scoreDocs.length * 8);
+        buffer.putInt(MAGIC).putLong(topDocs.totalHits.value).putInt(topDocs.totalHits.relation.ordinal())
+                .putInt(topDocs.scoreDocs.length);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs)
+            buffer.putInt(scoreDoc.doc).putFloat(scoreDoc.score);
+
+        // escribimos en un temporal y lo movemos, para que otro proceso nunca lea un ranking a medias
+        Path file = dir.resolve(key + SUFFIX);
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            Files.write(tmp, buffer.array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        if (totalBytes.addAndGet(buffer.capacity()) > maxBytes)
+            evict();
+    }
+
+    // Borra los rankings usados hace más tiempo hasta quedar por debajo del tamaño máximo
+    private synchronized void evict() throws IOException {
+        List<Entry> entries = entries();
+        long size = 0;
+        for (Entry entry : entries)
+            size += entry.size();
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+
+        for (Entry entry : entries) {
+            if (size <= maxBytes)
+                break;
+            if (Files.deleteIfExists(entry.path()))
+                size -= entry.size();
+        }
+        totalBytes.set(size);
+    }
+
+    private List<Entry> entries() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                try {
+                    entries.add(new Entry(path, Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+                } catch (NoSuchFileException e) {
+                    // lo ha borrado otro proceso que comparte la caché
+                }
+            }
+        }
+        return entries;
+    }
+
+    private record Entry(Path path, long size, long lastUsed) {}
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,179 @@
+package practicari;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Juicios de relevancia traducidos a ids de documento de Lucene. Los ids del corpus se buscan una sola vez
+ * en el diccionario de términos del campo "id", de modo que las métricas se calculan comparando enteros sin
+ * leer los campos almacenados de los documentos del ranking.
+ */
+public class ResolvedQrels {
+    private static final String ID_FIELD = "id";
+
+    private final Map<Integer, Judgments> byQuery;
+
+    private ResolvedQrels(Map<Integer, Judgments> byQuery) {
+        this.byQuery = byQuery;
+    }
+
+    public static ResolvedQrels resolve(Qrels qrels, IndexReader reader) throws IOException {
+        int[][] docsByOrd = lookupDocs(qrels, reader);
+
+        Map<Integer, Judgments> byQuery = new HashMap<>();
+        for (int q = 0; q < qrels.numQueries(); q++) {
+            int size = 0;
+            for (int j = qrels.start(q); j < qrels.end(q); j++)
+                size += docsByOrd[qrels.docOrd(j)].length;
+
+            long[] packed = new long[size];
+            int i = 0;
+            for (int j = qrels.start(q); j < qrels.end(q); j++) {
+                for (int doc : docsByOrd[qrels.docOrd(j)])
+                    packed[i++] = ((long) doc << 32) | (qrels.grade(j) & 0xFFFFFFFFL);
+            }
+            Arrays.sort(packed);
+
+            int[] docs = new int[size];
+            int[] grades = new int[size];
+            for (i = 0; i < size; i++) {
+                docs[i] = (int) (packed[i] >>> 32);
+                grades[i] = (int) packed[i];
+            }
+            byQuery.put(qrels.queryId(q), Judgments.create(docs, grades, qrels, q));
+        }
+        return new ResolvedQrels(byQuery);
+    }
+
+    // Busca cada id del corpus en el diccionario de términos de cada segmento; un id puede estar en varios documentos
+    private static int[][] lookupDocs(Qrels qrels, IndexReader reader) throws IOException {
+        int[][] docsByOrd = new int[qrels.numDocIds()][];
+        Arrays.fill(docsByOrd, new int[0]);
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms(ID_FIELD);
+            if (terms == null)
+                continue;
+            TermsEnum termsEnum = terms.iterator();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            PostingsEnum postings = null;
+
+            for (int ord = 0; ord < qrels.numDocIds(); ord++) {     // en orden, para que el TermsEnum avance hacia delante
+                if (!termsEnum.seekExact(new BytesRef(qrels.docId(ord))))
+                    continue;
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs != null && !liveDocs.get(doc))
+                        continue;
+                    int[] docs = Arrays.copyOf(docsByOrd[ord], docsByOrd[ord].length + 1);
+                    docs[docs.length - 1] = leaf.docBase + doc;
+                    docsByOrd[ord] = docs;
+                }
+            }
+        }
+        return docsByOrd;
+    }
+
+    // Juicios de una query; una query sin juicios no tiene documentos relevantes
+    public Judgments forQuery(int queryId) {
+        return byQuery.getOrDefault(queryId, Judgments.EMPTY);
+    }
+
+    /**
+     * Juicios de una query: ids de documento ordenados con su grado de relevancia, el número de documentos
+     * relevantes y no relevantes según los juicios (estén o no en el índice) y los grados de los relevantes
+     * de mayor a menor.
+     */
+    public static final class Judgments {
+        static final Judgments EMPTY = new Judgments(new int[0], new int[0], 0, 0, new int[0]);
+
+        private final int[] docs;
+        private final int[] grades;
+        private final int numRelevant;
+        private final int numNonRelevant;
+        private final int[] idealGrades;
+
+        private Judgments(int[] docs, int[] grades, int numRelevant, int numNonRelevant, int[] idealGrades) {
+            this.docs = docs;
+            this.grades = grades;
+            this.numRelevant = numRelevant;
+            this.numNonRelevant = numNonRelevant;
+            this.idealGrades = idealGrades;
+        }
+
+        // Juicios de la query en la posición q de los qrels, con los documentos ya traducidos a docs (ordenados)
+        private static Judgments create(int[] docs, int[] grades, Qrels qrels, int q) {
+            int numRelevant = 0;
+            for (int j = qrels.start(q); j < qrels.end(q); j++) {
+                if (qrels.grade(j) > 0)
+                    numRelevant++;      // cuentan también los relevantes que no están en el índice
+            }
+            int numNonRelevant = qrels.end(q) - qrels.start(q) - numRelevant;
+
+            // grados de los relevantes de mayor a menor: el ranking ideal para nDCG
+            int[] idealGrades = new int[numRelevant];
+            int r = 0;
+            for (int j = qrels.start(q); j < qrels.end(q); j++) {
+                if (qrels.grade(j) > 0)
+                    idealGrades[r++] = -qrels.grade(j);
+            }
+            Arrays.sort(idealGrades);
+            for (r = 0; r < numRelevant; r++)
+                idealGrades[r] = -idealGrades[r];
+
+            return new Judgments(docs, grades, numRelevant, numNonRelevant, idealGrades);
+        }
+
+        /**
+         * Juicios de una query sin índice: los documentos se identifican por su ordinal en el diccionario de
+         * ids de {@link Qrels} ({@link Qrels#docOrd(String)}), como hace {@link TrecEval} con los run files.
+         */
+        public static Judgments forOrdinals(Qrels qrels, int queryId) {
+            int q = qrels.queryIndex(queryId);
+            if (q < 0)
+                return EMPTY;
+
+            int size = qrels.end(q) - qrels.start(q);
+            int[] docs = new int[size];
+            int[] grades = new int[size];
+            for (int i = 0; i < size; i++) {
+                docs[i] = qrels.docOrd(qrels.start(q) + i);     // ya ordenados por ordinal
+                grades[i] = qrels.grade(qrels.start(q) + i);
+            }
+            return create(docs, grades, qrels, q);
+        }
+
+        // Grado de relevancia de un documento del ranking; 0 si no está juzgado
+        public int grade(int doc) {
+            int pos = Arrays.binarySearch(docs, doc);
+            return pos < 0 ? 0 : grades[pos];
+        }
+
+        public boolean isJudged(int doc) {
+            return Arrays.binarySearch(docs, doc) >= 0;
+        }
+
+        public int numRelevant() {
+            return numRelevant;
+        }
+
+        public int numNonRelevant() {
+            return numNonRelevant;
+        }
+
+        // Grado del relevante en la posición i (desde 0) del ranking ideal
+        public int idealGrade(int i) {
+            return idealGrades[i];
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package practicari;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caché en memoria de rankings, para las queries que se repiten dentro del mismo proceso: las búsquedas de
+ * {@link SearchServer} y las combinaciones de query y parámetro que se vuelven a evaluar en
+ * {@link TrainingTestTrecCovid}. Un acierto devuelve el ranking sin recorrer las listas de postings.
+ *
+ * La clave es el reader abierto, el texto de la query ya analizada (así se normalizan mayúsculas y espacios),
+ * la similitud con los valores exactos de sus parámetros y la profundidad. Cuando se supera el número máximo
+ * de entradas o de bytes se descartan los rankings usados hace más tiempo.
+ *
+ * A diferencia de {@link RankingCache}, no sobrevive al proceso, pero no lee ni escribe ficheros.
+ */
+public class ResultCache {
+    private static final long ENTRY_BYTES = RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4L * RamUsageEstimator.NUM_BYTES_OBJECT_REF + 4)
+            + RamUsageEstimator.shallowSizeOfInstance(TopDocs.class) + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+            + 64;       // clave, ranking y nodo del mapa
+    private static final long SCORE_DOC_BYTES = RamUsageEstimator.shallowSizeOfInstance(ScoreDoc.class)
+            + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    // en orden de acceso: el primero es el usado hace más tiempo
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Busca la query con la similitud del buscador, devolviendo el ranking guardado si lo hay.
+     */
+    public TopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+        TopDocs topDocs = get(searcher, query, n);
+        if (topDocs == null) {
+            topDocs = searcher.search(query, n);
+            put(searcher, query, n, topDocs);
+        }
+        return topDocs;
+    }
+
+    // Ranking guardado para esa búsqueda, o null si no está en la caché
+    public synchronized TopDocs get(IndexSearcher searcher, Query query, int n) {
+        Entry entry = entries.get(key(searcher, query, n));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.topDocs();
+    }
+
+    public synchronized void put(IndexSearcher searcher, Query query, int n, TopDocs topDocs) {
+        Key key = key(searcher, query, n);
+        long size = ENTRY_BYTES + RamUsageEstimator.sizeOf(key.query()) + RamUsageEstimator.sizeOf(key.similarity())
+                + topDocs.scoreDocs.length * SCORE_DOC_BYTES;
+        if (size > maxBytes)
+            return;     // no cabe ni con la caché vacía
+
+        Entry previous = entries.put(key, new Entry(topDocs, size));
+        if (previous != null)
+            bytes -= previous.bytes();
+        bytes += size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().bytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    // Vacía la caché, por ejemplo cuando se reabre el índice y los rankings guardados ya no se van a pedir
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static Key key(IndexSearcher searcher, Query query, int n) {
+        return new Key(searcher.getIndexReader(), query.toString(),
+                RankingCache.similarityKey(searcher.getSimilarity()), n);
+    }
+
+    // El reader se compara por identidad, así un índice reabierto nunca recibe rankings de la versión anterior
+    private record Key(IndexReader reader, String query, String similarity, int n) {}
+
+    private record Entry(TopDocs topDocs, long bytes) {}
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {
+        @Override
+        public String toString() {
+            return hits + " aciertos, " + misses + " fallos, " + evictions + " descartes, " + entries
+                    + " rankings en " + String.format("%.1f", bytes / 1024.0 / 1024.0) + " MB";
+        }
+    }
+}
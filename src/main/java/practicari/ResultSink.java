@@ -0,0 +1,171 @@
+package practicari;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Salida de resultados de las herramientas de búsqueda: un hilo escribe en segundo plano el texto que le
+ * llega por una cola acotada, en un fichero (comprimido con gzip si se pide) y opcionalmente también en la
+ * consola, así que la búsqueda no espera a la E/S.
+ *
+ * Los bloques se escriben en el orden en que se entregan, tanto en el fichero como en la consola. Lleva la
+ * cuenta de los bytes escritos en el fichero y del tiempo del hilo escritor.
+ */
+public class ResultSink implements Closeable {
+    public static final String GZIP_SUFFIX = ".gz";
+    // búferes grandes: los bloques de resultados con el texto de los documentos ocupan decenas de KB
+    private static final int BUFFER_SIZE = 1 << 20;
+    // marca de fin de la cola para que el hilo escritor termine
+    private static final Block END = new Block(null, false, false);
+
+    private final Writer fileWriter;
+    private final Writer consoleWriter;
+    private final CountingOutputStream fileBytes;
+    private final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(1024);
+    private final Thread writerThread;
+    private volatile long ioNanos;
+    private volatile Exception failure;
+
+    private record Block(String text, boolean toFile, boolean toConsole) {}
+
+    /**
+     * Crea la salida sobre el fichero; con gzip se añade la extensión .gz al nombre. Con echo, lo que se
+     * escribe en el fichero también se muestra en la consola.
+     */
+    public ResultSink(Path file, boolean gzip, boolean echo) throws IOException {
+        this.fileBytes = new CountingOutputStream(Files.newOutputStream(gzip ? gzipPath(file) : file));
+        OutputStream out = gzip ?
+                new GZIPOutputStream(fileBytes, BUFFER_SIZE) : new BufferedOutputStream(fileBytes, BUFFER_SIZE);
+        this.fileWriter = new OutputStreamWriter(out, Charset.defaultCharset());
+        // la consola con su propio búfer, sin el flush por línea de System.out
+        this.consoleWriter = echo ? new OutputStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE),
+                Charset.defaultCharset()) : null;
+        this.writerThread = new Thread(this::work, "result-writer-" + file.getFileName());
+        // si una herramienta termina por un error sin llegar a close(), el hilo no impide que acabe la JVM
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public static Path gzipPath(Path file) {
+        return file.resolveSibling(file.getFileName() + GZIP_SUFFIX);
+    }
+
+    // Encola texto para el fichero (y la consola si hay eco); bloquea si la cola está llena
+    public void write(String text) throws IOException {
+        put(new Block(text, true, consoleWriter != null));
+    }
+
+    // Encola texto sólo para la consola, en orden con el resto de la salida; se ignora sin eco
+    public void echo(String text) throws IOException {
+        if (consoleWriter != null)
+            put(new Block(text, false, true));
+    }
+
+    private void put(Block block) throws IOException {
+        checkFailure();
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Escritura de resultados interrumpida", e);
+        }
+    }
+
+    // Bytes escritos en el fichero (ya comprimidos si es gzip); definitivo después de close()
+    public long bytesWritten() {
+        return fileBytes.count;
+    }
+
+    // Tiempo que el hilo escritor ha pasado escribiendo en el fichero y en la consola
+    public long ioNanos() {
+        return ioNanos;
+    }
+
+    // Espera a que se escriba todo lo encolado y cierra el fichero
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Escritura de resultados interrumpida", e);
+        }
+        checkFailure();
+    }
+
+    private void work() {
+        try {
+            Block block;
+            while ((block = queue.take()) != END) {
+                if (failure != null)
+                    continue;       // seguimos vaciando la cola para no bloquear a quien escribe
+                long start = System.nanoTime();
+                try {
+                    if (block.toFile())
+                        fileWriter.write(block.text());
+                    if (block.toConsole())
+                        consoleWriter.write(block.text());
+                } catch (IOException e) {
+                    failure = e;
+                }
+                ioNanos += System.nanoTime() - start;
+            }
+
+            long start = System.nanoTime();
+            try {
+                fileWriter.close();
+                if (consoleWriter != null)
+                    consoleWriter.flush();     // la consola no se cierra
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+            ioNanos += System.nanoTime() - start;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        else if (failure != null)
+            throw new IOException(failure.getMessage(), failure);
+    }
+
+    // Cuenta los bytes que llegan al fichero
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private volatile long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -1,18 +1,8 @@
 package practicari;
 
-import com.fasterxml.jackson.databind.MappingIterator;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
@@ -20,6 +10,10 @@ import org.apache.lucene.search.similarities.Similarity;
 import java.io.*;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SearchEvalTrecCovid {
     private static final String queryFilePath = "trec-covid" + File.separator + "queries.jsonl";
@@ -34,6 +28,18 @@ public class SearchEvalTrecCovid {
         int cut = 10; // Valor por defecto para el corte en el ranking
         int top = 10; // Valor por defecto para el top de documentos
         String queriesOption = null; // Opciones para seleccionar qué queries evaluar
+        int searchThreads = 1; // Hilos para recorrer los segmentos del índice en paralelo
+        int queryThreads = 1; // Hilos para evaluar varias queries a la vez
+        boolean compareLatency = false; // Comparar la latencia de la búsqueda concurrente con la secuencial
+        String cacheDir = null; // Carpeta de la caché de rankings
+        long cacheSizeMB = 256; // Tamaño máximo de la caché de rankings
+        String runTag = null; // Etiqueta del run file de TREC, si hay que escribirlo
+        int deep = -1; // Documentos del top que se muestran con el texto completo (-1: todos)
+        boolean quiet = false; // No mostrar los resultados en la consola, sólo escribirlos en el fichero
+        boolean gzip = false; // Comprimir con gzip el fichero de resultados y el run file
+        int queryCacheMB = -1; // Tamaño de la caché de queries de Lucene (-1: la de Lucene por defecto)
+        String queryCachePolicy = null; // Política de la caché de queries de Lucene
+        boolean termStates = false; // Precargar los TermStates de los términos de las queries en el índice
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -57,6 +63,42 @@ public class SearchEvalTrecCovid {
                 case "-queries":
                     queriesOption = args[++i];
                     break;
+                case "-searchthreads":
+                    searchThreads = tryParseInt(args[++i], "Argumento -searchthreads no es un entero válido.");
+                    break;
+                case "-querythreads":
+                    queryThreads = tryParseInt(args[++i], "Argumento -querythreads no es un entero válido.");
+                    break;
+                case "-comparelatency":
+                    compareLatency = true;
+                    break;
+                case "-cache":
+                    cacheDir = args[++i];
+                    break;
+                case "-cachesize":
+                    cacheSizeMB = tryParseInt(args[++i], "Argumento -cachesize no es un entero válido.");
+                    break;
+                case "-run":
+                    runTag = args[++i];
+                    break;
+                case "-deep":
+                    deep = tryParseInt(args[++i], "Argumento -deep no es un entero válido.");
+                    break;
+                case "-quiet":
+                    quiet = true;
+                    break;
+                case "-gzip":
+                    gzip = true;
+                    break;
+                case "-querycache":
+                    queryCacheMB = tryParseInt(args[++i], "Argumento -querycache no es un entero válido.");
+                    break;
+                case "-querycachepolicy":
+                    queryCachePolicy = args[++i];
+                    break;
+                case "-termstates":
+                    termStates = true;
+                    break;
                 default:
                     System.err.println("Opción desconocida: " + args[i]);
                     System.exit(0);
@@ -67,7 +109,10 @@ public class SearchEvalTrecCovid {
         // Validar argumentos
         if (searchModel == null || indexPath == null || queriesOption == null) {
             System.err.println("Uso: java SearchEvalTrecCovid -search <jm/bm25> <lambda/k1>" +
-                    "-index <ruta> -cut <n> -top <m> -queries <all/int1/int1-int2>");
+                    "-index <ruta> -cut <n> -top <m> -queries <all/int1/int1-int2> [-searchthreads <n>] " +
+                    "[-querythreads <n>] [-comparelatency] [-cache <ruta>] [-cachesize <MB>] [-run <etiqueta>] " +
+                    "[-deep <n>] [-quiet] [-gzip] [-querycache <MB>] [-querycachepolicy <usage/always>] " +
+                    "[-termstates]");
             System.exit(1);
         }
         if (cut < 1) {
@@ -76,11 +121,26 @@ public class SearchEvalTrecCovid {
         } else if (top < 0) {
             System.err.println("Opción -top debe ser 0 o un número natural.");
             System.exit(1);
+        } else if (searchThreads < 1) {
+            System.err.println("Opción -searchthreads debe ser un entero positivo.");
+            System.exit(1);
+        } else if (queryThreads < 1) {
+            System.err.println("Opción -querythreads debe ser un entero positivo.");
+            System.exit(1);
+        } else if (deep < -1) {
+            System.err.println("Opción -deep debe ser 0 o un número natural.");
+            System.exit(1);
+        } else if (cacheSizeMB < 1) {
+            System.err.println("Opción -cachesize debe ser un entero positivo.");
+            System.exit(1);
+        } else if (queryCacheMB < -1) {
+            System.err.println("Opción -querycache debe ser 0 o un número natural.");
+            System.exit(1);
+        } else if (queryCachePolicy != null && !TrecSearcherFactory.isQueryCachePolicy(queryCachePolicy)) {
+            System.err.println("Opción -querycachepolicy debe ser usage o always.");
+            System.exit(1);
         }
 
-        // Configurar el analizador
-        Analyzer analyzer = new StandardAnalyzer();
-
         // Configurar la similitud según el modelo especificado
         Similarity similarity;
         if (searchModel.equalsIgnoreCase("jm")) {
@@ -89,233 +149,387 @@ public class SearchEvalTrecCovid {
             similarity = new BM25Similarity(k1, 0.75f); // Usando b=0.75 por defecto
         }
 
-        // Abrir el índice
-        try (Directory dir = FSDirectory.open(Paths.get(indexPath));
-             IndexReader indexReader = DirectoryReader.open(dir)) {
+        // Abrir el índice (único o dividido en shards)
+        try (ShardedIndex index = ShardedIndex.open(Paths.get(indexPath));
+             TrecSearcherFactory searcherFactory = new TrecSearcherFactory(searchThreads)) {
+            IndexReader indexReader = index.reader();
+            searcherFactory.configureQueryCache(queryCacheMB, queryCachePolicy);
 
             // Crear el buscador
-            IndexSearcher searcher = new IndexSearcher(indexReader);
+            IndexSearcher searcher = searcherFactory.newSearcher(indexReader);
             searcher.setSimilarity(similarity);
 
-            File queryFile = new File(queryFilePath);
-            ObjectReader queryReader = JsonMapper.builder().findAndAddModules().build()
-                    .readerFor(QueryJsonl.class);
-            List<QueryJsonl> queries = new LinkedList<>();
-            MappingIterator<QueryJsonl> itr = queryReader.readValues(queryFile);
-            if(queriesOption.equals("all"))     // si hay que leer todas las queries
-                queries = itr.readAll();
+            // buscador de un solo hilo para comparar latencias
+            IndexSearcher sequentialSearcher = new IndexSearcher(indexReader);
+            sequentialSearcher.setSimilarity(similarity);
+
+            // rankings de ejecuciones anteriores con el mismo índice, query, similitud y profundidad
+            RankingCache cache = cacheDir == null ? null :
+                    new RankingCache(Paths.get(cacheDir), cacheSizeMB * 1024 * 1024, indexReader);
+
+            // queries ya analizadas y parseadas (queries.jsonl.qset), ordenadas por id
+            QuerySet querySet = QuerySet.read(new File(queryFilePath));
+            if (termStates)
+                querySet = querySet.withTermStates(indexReader);
+            List<QuerySet.Compiled> queries;
+            if(queriesOption.equals("all"))     // si hay que evaluar todas las queries
+                queries = querySet.all();
             else if (queriesOption.contains("-")) {      // si es un rango de queries
                 String[] parts = queriesOption.split("-");
                 int q1 = tryParseInt(parts[0], "Argumento -queries no válido.");
                 int q2 = tryParseInt(parts[1], "Argumento -queries no válido.");
-                QueryJsonl query;
-
-                while (itr.hasNext()) {
-                    query = itr.next();
-                    if (query.id() >= q1 && query.id() <= q2)
-                        queries.add(query);
-                }
+                queries = querySet.range(q1, q2);
             } else {
                 // si es una única query
                 int q = tryParseInt(queriesOption, "Argumento -queries no válido.");
-                QueryJsonl query;
-
-                while (itr.hasNext()) {
-                    query = itr.next();
-                    if (query.id()  == q) {
-                        queries.add(query);
-                        break;
-                    }
-                }
-
-                if(queries.isEmpty()) {
+                QuerySet.Compiled query = querySet.get(q);
+                if (query == null) {
                     System.err.println("La query especificada no existe.");
                     System.exit(1);
                 }
+                queries = List.of(query);
             }
 
-
-            // Procesamiento de las queries
-            QueryParser queryParser = new QueryParser("text", analyzer);
-
-            // Abrimos los writers
-            PrintWriter txtWriter = new PrintWriter("TREC-COVID." + searchModel +
+            // Abrimos los writers: los resultados y el run file se escriben en segundo plano
+            ResultSink txtSink = new ResultSink(Paths.get("TREC-COVID." + searchModel +
                     "." + top + ".hits." + (lambda!=0? "lambda." + lambda : "k1." + k1) + ".q" +
-                    queriesOption + ".txt");
-            PrintWriter csvWriter = new PrintWriter("TREC-COVID." + searchModel +
-                    "." + cut + ".cut." + (lambda!=0? "lambda." + lambda : "k1." + k1) + ".q" +
-                    queriesOption + ".csv");
-
-            // cabeceras del csv
-            csvWriter.println("Query,P@" + cut + ",Recall@" + cut + ",AP@" + cut + ",RR@" + cut);
-
-            // Leer el archivo de juicios de relevancia (test.tsv)
-            File testFile = new File(testFilePath);
-            Map<Integer, Map<String, Integer>> relevances = readTsv(testFile);
-            int numQueries = queries.size();
-
-            double sumP = 0;
-            double sumRecall = 0;
-            double sumAP = 0;
-            double sumRR = 0;
-
-            // Búsqueda y evaluación de las queries
-            for (QueryJsonl query : queries) {
-                System.out.println("Query: " + query.metadata().query());
-                txtWriter.println("Query: " + query.metadata().query());
-
-                Query q = queryParser.parse(query.metadata().query());
-                Map<String, Integer> thisRelevances = relevances.get(query.id());
-
-                // Ranking de documentos  al hacer una búsqueda
-                int numDocsinRanking = Math.max(cut, top);
-                TopDocs topDocs = searcher.search(q, numDocsinRanking); // sacamos los top docs para las métricas y el output
-                List<ScoreDoc> scoreDocs = List.of(topDocs.scoreDocs);
-                int relevantN = 0;
-                int relevantQuery = 0;
-                double sumAccuracies = 0;
-                int firstRelevant = 0;
-
-                for(String corpusID : thisRelevances.keySet()) {
-                    // para cada doc, vemos si es relevante para esta query
-                    if(thisRelevances.get(corpusID) > 0)
-                        relevantQuery++;
+                    queriesOption + ".txt"), gzip, !quiet);
+            String csvName = "TREC-COVID." + searchModel +
+                    "." + cut + ".cut." + (lambda!=0? "lambda." + lambda : "k1." + k1) + ".q" + queriesOption;
+
+            // run file de TREC con los primeros TrecRun.DEPTH documentos de cada query
+            ResultSink runSink = runTag == null ? null : new ResultSink(Paths.get("TREC-COVID." + searchModel +
+                    "." + TrecRun.DEPTH + ".run." + (lambda!=0? "lambda." + lambda : "k1." + k1) + ".q" +
+                    queriesOption + ".txt"), gzip, false);
+
+            // latencias por etapa de cada query, que se escriben junto al csv de métricas
+            LatencyReport latencies = new LatencyReport();
+
+            // los writers se cierran también si falla la búsqueda: el hilo de cada ResultSink espera a close()
+            long searchNanos;
+            try (txtSink; runSink; PrintWriter csvWriter = new PrintWriter(csvName + ".csv")) {
+                // cabeceras del csv
+                csvWriter.println("Query,P@" + cut + ",Recall@" + cut + ",AP@" + cut + ",RR@" + cut);
+
+                // Leer el archivo de juicios de relevancia (test.tsv)
+                File testFile = new File(testFilePath);
+                Qrels qrels = Qrels.read(testFile);
+                ResolvedQrels judgments = ResolvedQrels.resolve(qrels, indexReader);
+                GlobalMetrics global = new GlobalMetrics(queries.size());
+
+                // Búsqueda y evaluación de las queries, en paralelo si se piden varios hilos. Los resultados se
+                // escriben y acumulan en el orden de las queries, así la salida no depende del orden en que
+                // terminen los hilos; la escritura se solapa con las búsquedas que quedan
+                long searchStart = System.nanoTime();
+                evaluateQueries(queries, queryThreads, searcher, sequentialSearcher, cache, judgments, cut, top,
+                        deep, compareLatency, searchThreads, runTag, result -> {
+                    long outputStart = System.nanoTime();
+                    txtSink.write(result.header());
+                    if (result.latency() != null)
+                        txtSink.echo(result.latency());
+                    txtSink.write(result.body());
+                    csvWriter.println(result.queryId() + "," + result.p() + "," + result.recall() + ","
+                            + result.ap() + "," + result.rr());
+                    if (runSink != null)
+                        runSink.write(result.run());
+                    global.add(result);
+                    latencies.add(result.queryId(), result.parseNanos(), result.searchNanos(), result.hitsNanos(),
+                            System.nanoTime() - outputStart);
+                });
+                searchNanos = System.nanoTime() - searchStart;
+
+                // global metrics
+                int numQueries = global.numQueries;
+                double mp = global.sumP / numQueries;
+                double meanRecall = global.sumRecall / numQueries;
+                double map = global.sumAP / numQueries;
+                double mrr = global.sumRR / numQueries;
+
+                txtSink.write("GLOBAL METRICS:" + System.lineSeparator() + "Mean P@N: " + mp + "; Mean Recall@n: "
+                        + meanRecall + "; MAP@n: " + map + "; MRR@n: " + mrr + System.lineSeparator());
+                csvWriter.println("," + mp + "," + meanRecall + "," + map + "," + mrr);
+                if (compareLatency && !queries.isEmpty()) {
+                    txtSink.echo("Latencia media: secuencial " + global.sumSequentialNanos / 1e6 / queries.size()
+                            + " ms; " + searchThreads + " hilos " + global.sumConcurrentNanos / 1e6 / queries.size()
+                            + " ms" + System.lineSeparator());
                 }
+            }
 
-                double p = 0;
-                double recall = 0;
-                double ap = 0;
-                int rr = 0;
+            if (cache != null)
+                System.out.println("Caché de rankings: " + cache.hits() + " aciertos, " + cache.misses() + " fallos");
+            if (searcherFactory.queryCacheStats() != null)
+                System.out.println("Caché de queries de Lucene: " + searcherFactory.queryCacheStats());
+            long bytes = txtSink.bytesWritten() + (runSink != null ? runSink.bytesWritten() : 0);
+            long ioNanos = txtSink.ioNanos() + (runSink != null ? runSink.ioNanos() : 0);
+            System.err.println("Salida: " + bytes + " bytes escritos; búsqueda y evaluación " + searchNanos / 1e6
+                    + " ms; E/S en segundo plano " + ioNanos / 1e6 + " ms");
+
+            latencies.writeCsv(new File(csvName + ".latency.csv"));
+            latencies.writeJson(new File(csvName + ".latency.json"), latencies.summary(searchModel + " "
+                    + (lambda != 0 ? "lambda " + lambda : "k1 " + k1), indexPath, queryThreads, searchThreads,
+                    searchNanos));
+            System.err.println(latencies.summaryLine(searchNanos));
+        } catch (IOException e) {
+            System.err.println("Excepción de E/S: " + e.getMessage());
+        }
+    }
 
-                if (relevantQuery == 0) {
-                    numQueries--;    // no tenemos en cuenta para las métricas las queries sin resultados
+    // Resultado de evaluar una query: el texto a imprimir, sus métricas y el tiempo de cada etapa
+    private record QueryResult(int queryId, String header, String latency, String body, String run,
+                               boolean evaluated, double p, double recall, double ap, int rr,
+                               long sequentialNanos, long concurrentNanos,
+                               long parseNanos, long searchNanos, long hitsNanos) {}
+
+    // Métricas globales: sumas de las métricas de las queries evaluadas y de las latencias
+    private static final class GlobalMetrics {
+        int numQueries;
+        double sumP;
+        double sumRecall;
+        double sumAP;
+        double sumRR;
+        long sumSequentialNanos;
+        long sumConcurrentNanos;
+
+        GlobalMetrics(int numQueries) {
+            this.numQueries = numQueries;
+        }
 
-                    int rankingPos = 0;
-                    for(ScoreDoc scoreDoc : scoreDocs) {    // n docs in topDocs
-                        rankingPos++;
+        void add(QueryResult result) {
+            if (result.evaluated()) {
+                // sumar para luego calcular las métricas globales
+                sumP += result.p();
+                sumRecall += result.recall();
+                sumAP += result.ap();
+                sumRR += result.rr();
+            } else {
+                numQueries--;    // no tenemos en cuenta para las métricas las queries sin resultados
+            }
+            sumSequentialNanos += result.sequentialNanos();
+            sumConcurrentNanos += result.concurrentNanos();
+        }
+    }
 
-                        if (rankingPos > top)
-                            break;
+    // Recibe los resultados de las queries, en el mismo orden que la lista de queries
+    private interface ResultHandler {
+        void accept(QueryResult result) throws IOException;
+    }
 
-                        // buscamos cada documento de los primeros m topDocs e imprimimos su info
-                        Document doc = searcher.doc(scoreDoc.doc);
-                        String print = getStringIndexedData(doc, scoreDoc, thisRelevances.get(doc.get("id")));
-                        System.out.print(print);
-                        txtWriter.print(print);
-                    }
+    // Evalúa todas las queries y entrega cada resultado en cuanto están listos los de las queries anteriores
+    private static void evaluateQueries(List<QuerySet.Compiled> queries, int queryThreads, IndexSearcher searcher,
+                                        IndexSearcher sequentialSearcher, RankingCache cache,
+                                        ResolvedQrels judgments, int cut, int top, int deep,
+                                        boolean compareLatency, int searchThreads, String runTag,
+                                        ResultHandler handler)
+            throws IOException {
+        if (queryThreads <= 1) {
+            for (QuerySet.Compiled query : queries) {
+                handler.accept(evaluateQuery(query, searcher, sequentialSearcher, cache, judgments, cut,
+                        top, deep, compareLatency, searchThreads, runTag));
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(queryThreads);
+        try {
+            List<Future<QueryResult>> futures = new ArrayList<>(queries.size());
+            for (QuerySet.Compiled query : queries) {
+                futures.add(executor.submit(() -> evaluateQuery(query, searcher, sequentialSearcher,
+                        cache, judgments, cut, top, deep, compareLatency, searchThreads, runTag)));
+            }
+            for (Future<QueryResult> future : futures)
+                handler.accept(getResult(future));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Busca y evalúa una query; puede ejecutarse en paralelo con otras sobre el mismo buscador
+    private static QueryResult evaluateQuery(QuerySet.Compiled query, IndexSearcher searcher,
+                                             IndexSearcher sequentialSearcher, RankingCache cache,
+                                             ResolvedQrels judgments, int cut, int top, int deep,
+                                             boolean compareLatency, int searchThreads, String runTag)
+            throws IOException {
+        String header = "Query: " + query.text() + System.lineSeparator();
+        StringBuilder body = new StringBuilder();
+
+        // la query ya viene analizada y parseada del QuerySet, así que la etapa de parseo no cuesta nada
+        Query q = query.parsed();
+        long parseNanos = 0;
+        ResolvedQrels.Judgments thisRelevances = judgments.forQuery(query.id());
+
+        // Ranking de documentos  al hacer una búsqueda
+        int numDocsinRanking = Math.max(cut, top);
+        if (runTag != null)
+            numDocsinRanking = Math.max(numDocsinRanking, TrecRun.DEPTH);
+        // sacamos los top docs para las métricas y el output
+        long searchStart = System.nanoTime();
+        TopDocs topDocs = cache != null ?
+                cache.search(searcher, q, numDocsinRanking) : searcher.search(q, numDocsinRanking);
+        long searchNanos = System.nanoTime() - searchStart;
+        String latency = null;
+        long sequentialNanos = 0;
+        long concurrentNanos = 0;
+        if (compareLatency) {
+            // una búsqueda de calentamiento con cada buscador, y el orden de las medidas se alterna entre queries
+            // para que ninguno de los dos encuentre siempre la caché más caliente
+            timeSearch(sequentialSearcher, q, numDocsinRanking);
+            timeSearch(searcher, q, numDocsinRanking);
+            if (query.id() % 2 == 0) {
+                sequentialNanos = timeSearch(sequentialSearcher, q, numDocsinRanking);
+                concurrentNanos = timeSearch(searcher, q, numDocsinRanking);
+            } else {
+                concurrentNanos = timeSearch(searcher, q, numDocsinRanking);
+                sequentialNanos = timeSearch(sequentialSearcher, q, numDocsinRanking);
+            }
+            latency = "Latencia: secuencial " + sequentialNanos / 1e6 + " ms; " + searchThreads
+                    + " hilos " + concurrentNanos / 1e6 + " ms" + System.lineSeparator();
+        }
+        // desde aquí, carga de los documentos del ranking para la salida y cálculo de las métricas
+        long hitsStart = System.nanoTime();
+        List<ScoreDoc> scoreDocs = List.of(topDocs.scoreDocs);
+        String run = null;
+        if (runTag != null) {
+            ScoreDoc[] runDocs = Arrays.copyOf(topDocs.scoreDocs, Math.min(topDocs.scoreDocs.length, TrecRun.DEPTH));
+            run = TrecRun.format(query.id(), runDocs, searcher.getIndexReader(), runTag);
+        }
+        // con -deep sólo los primeros documentos se muestran con los campos almacenados; del resto del top se
+        // muestran los campos con doc values, leídos de una vez segmento a segmento
+        int fullHits = deep < 0 ? top : Math.min(deep, top);
+        ScoreDoc[] deepHits = Arrays.copyOfRange(topDocs.scoreDocs, Math.min(fullHits, topDocs.scoreDocs.length),
+                Math.min(top, topDocs.scoreDocs.length));
+        IndexReader reader = searcher.getIndexReader();
+        String[] deepIds = HitFields.values(reader, deepHits, "id", true);
+        String[] deepUrls = HitFields.values(reader, deepHits, "url", false);
+        String[] deepPubmedIds = HitFields.values(reader, deepHits, "pubmed_id", false);
+
+        int relevantN = 0;
+        int relevantQuery = thisRelevances.numRelevant();
+        double sumAccuracies = 0;
+        int firstRelevant = 0;
+
+        double p = 0;
+        double recall = 0;
+        double ap = 0;
+        int rr = 0;
+
+        if (relevantQuery == 0) {
+            int rankingPos = 0;
+            for(ScoreDoc scoreDoc : scoreDocs) {    // n docs in topDocs
+                rankingPos++;
+
+                if (rankingPos > top)
+                    break;
+
+                // buscamos cada documento de los primeros m topDocs e imprimimos su info
+                int relevance = thisRelevances.grade(scoreDoc.doc);
+                if (rankingPos <= fullHits) {
+                    appendIndexedData(body, searcher.doc(scoreDoc.doc), scoreDoc, relevance);
                 } else {
-                    int rankingPos = 0;
-                    for(ScoreDoc scoreDoc : scoreDocs) {        // iteramos por el ranking
-                        rankingPos++;
-
-                        // buscamos cada documento de topDocs
-                        Document doc = searcher.doc(scoreDoc.doc);
-                        String corpusID = doc.get("id");
-                        int relevance = thisRelevances.getOrDefault(corpusID, 0);
-
-                        if (rankingPos <= cut) {        // si estamos en el corte n calculamos las métricas
-                            if(relevance > 0) {
-                                relevantN++;
-                                // calcular precision
-                                sumAccuracies += (double) relevantN / rankingPos;
-                                if(firstRelevant == 0)
-                                    firstRelevant = rankingPos;
-                            }
-                        }
-
-                        // print m times doc data:
-                        if (rankingPos <= top) {
-                            String print = getStringIndexedData(doc, scoreDoc, relevance);
-                            System.out.print(print);
-                            txtWriter.print(print);
-                        }
+                    int d = rankingPos - fullHits - 1;
+                    appendDocValuesData(body, deepIds[d], deepUrls[d], deepPubmedIds[d], scoreDoc, relevance);
+                }
+            }
+        } else {
+            int rankingPos = 0;
+            for(ScoreDoc scoreDoc : scoreDocs) {        // iteramos por el ranking
+                rankingPos++;
+
+                // la relevancia sale de los juicios ya resueltos, sin leer el documento
+                int relevance = thisRelevances.grade(scoreDoc.doc);
+
+                if (rankingPos <= cut) {        // si estamos en el corte n calculamos las métricas
+                    if(relevance > 0) {
+                        relevantN++;
+                        // calcular precision
+                        sumAccuracies += (double) relevantN / rankingPos;
+                        if(firstRelevant == 0)
+                            firstRelevant = rankingPos;
                     }
-
-                    // cálculo de métricas
-                    p = (double) relevantN / cut;
-                    recall = (double) relevantN / relevantQuery;
-                    ap = sumAccuracies / relevantQuery;
-                    rr = firstRelevant == 0? 0 : 1/firstRelevant;
-
-                    // sumar para luego calcular las métricas globales
-                    sumP += p;
-                    sumRecall += recall;
-                    sumAP += ap;
-                    sumRR += rr;
                 }
 
-                // print query metrics
-                System.out.print("QUERY METRICS:" + System.lineSeparator() + "P@N: " + p + "; Recall@n: "+ recall
-                        + "; AP@n: " + ap + "; RR@n: " + rr + System.lineSeparator() + System.lineSeparator());
-                txtWriter.print("QUERY METRICS:" + System.lineSeparator() + "P@N: " + p + "; Recall@n: " + recall
-                        + "; AP@n: " + ap + "; RR@n: " + rr + System.lineSeparator() + System.lineSeparator());
-                csvWriter.println(query.id() + "," + p + "," + recall + "," + ap + "," + rr);
+                // print m times doc data: sólo aquí hace falta leer el documento
+                if (rankingPos <= fullHits) {
+                    appendIndexedData(body, searcher.doc(scoreDoc.doc), scoreDoc, relevance);
+                } else if (rankingPos <= top) {
+                    int d = rankingPos - fullHits - 1;
+                    appendDocValuesData(body, deepIds[d], deepUrls[d], deepPubmedIds[d], scoreDoc, relevance);
+                }
             }
 
-            // global metrics
-            double mp = sumP / numQueries;
-            double meanRecall = sumRecall / numQueries;
-            double map = sumAP / numQueries;
-            double mrr = sumRR / numQueries;
-
-            System.out.println("GLOBAL METRICS:" + System.lineSeparator() + "Mean P@N: " + mp
-                    + "; Mean Recall@n: " + meanRecall + "; MAP@n: " + map + "; MRR@n: " + mrr);
-            txtWriter.println("GLOBAL METRICS:" + System.lineSeparator() + "Mean P@N: " + mp + "; Mean Recall@n: "
-                    + meanRecall + "; MAP@n: " + map + "; MRR@n: " + mrr);
-            csvWriter.println("," + mp + "," + meanRecall + "," + map + "," + mrr);
-
-            // cerrar writers
-            txtWriter.flush();
-            txtWriter.close();
-            csvWriter.flush();
-            csvWriter.close();
-        } catch (IOException e) {
-            System.err.println("Excepción de E/S: " + e.getMessage());
-        } catch (ParseException e) {
-            System.err.println("Error de parsing: " + e.getMessage());
+            // cálculo de métricas
+            p = (double) relevantN / cut;
+            recall = (double) relevantN / relevantQuery;
+            ap = sumAccuracies / relevantQuery;
+            rr = firstRelevant == 0? 0 : 1/firstRelevant;
+        }
+
+        // query metrics
+        body.append("QUERY METRICS:" + System.lineSeparator() + "P@N: " + p + "; Recall@n: " + recall
+                + "; AP@n: " + ap + "; RR@n: " + rr + System.lineSeparator() + System.lineSeparator());
+
+        String text = body.toString();
+        long hitsNanos = System.nanoTime() - hitsStart;
+
+        return new QueryResult(query.id(), header, latency, text, run, relevantQuery > 0, p, recall, ap,
+                rr, sequentialNanos, concurrentNanos, parseNanos, searchNanos, hitsNanos);
+    }
+
+    // Espera el resultado de una query evaluada en otro hilo y relanza sus excepciones
+    private static QueryResult getResult(Future<QueryResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Evaluación interrumpida", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            else if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
         }
     }
 
+    // Tiempo en nanosegundos de una búsqueda, para comparar buscadores
+    private static long timeSearch(IndexSearcher searcher, Query q, int n) throws IOException {
+        long start = System.nanoTime();
+        searcher.search(q, n);
+        return System.nanoTime() - start;
+    }
+
     // Función para obtener la información de un documento indexado
-    private static String getStringIndexedData(Document doc, ScoreDoc score, Integer relevance) {
-        String str = "ID: " + doc.get("id") + System.lineSeparator();
-        str += "Title: " + doc.get("title") + System.lineSeparator();
-        str += "Text: " + doc.get("text") + System.lineSeparator();
-        str += "Url: " + doc.get("url") + System.lineSeparator();
-        str += "Pubmed_id: " + doc.get("pubmed_id") + System.lineSeparator();
-        str += "Score: " + score.score + System.lineSeparator();
+    private static void appendIndexedData(StringBuilder out, Document doc, ScoreDoc score, int relevance) {
+        String nl = System.lineSeparator();
+        out.append("ID: ").append(doc.get("id")).append(nl);
+        out.append("Title: ").append(doc.get("title")).append(nl);
+        out.append("Text: ").append(doc.get("text")).append(nl);
+        out.append("Url: ").append(doc.get("url")).append(nl);
+        out.append("Pubmed_id: ").append(doc.get("pubmed_id")).append(nl);
+        out.append("Score: ").append(score.score).append(nl);
+        appendRelevance(out, relevance);
+    }
+
+    // Documento del top más allá de -deep: sólo los campos con doc values (los que falten no se muestran)
+    private static void appendDocValuesData(StringBuilder out, String id, String url, String pubmedId,
+                                            ScoreDoc score, int relevance) {
+        String nl = System.lineSeparator();
+        out.append("ID: ").append(id).append(nl);
+        if (url != null)
+            out.append("Url: ").append(url).append(nl);
+        if (pubmedId != null)
+            out.append("Pubmed_id: ").append(pubmedId).append(nl);
+        out.append("Score: ").append(score.score).append(nl);
+        appendRelevance(out, relevance);
+    }
 
+    private static void appendRelevance(StringBuilder out, int relevance) {
+        String nl = System.lineSeparator();
         if(relevance == 0)
-            str += "Documento no relevante." + System.lineSeparator() + System.lineSeparator();
+            out.append("Documento no relevante.").append(nl).append(nl);
         else if (relevance == 1)
-            str += "Documento parcialmente relevante." + System.lineSeparator() + System.lineSeparator();
+            out.append("Documento parcialmente relevante.").append(nl).append(nl);
         else
-            str += "Documento relevante." + System.lineSeparator() + System.lineSeparator();
-        return str;
-    }
-
-    private static Map<Integer, Map<String, Integer>> readTsv(File test) {
-        Map<Integer, Map<String, Integer>> data = new HashMap<>();
-
-        try (BufferedReader tsvReader = new BufferedReader(new FileReader(test))) {
-            String line = tsvReader.readLine();      // ignoramos la línea de cabecera
-            while ((line = tsvReader.readLine()) != null) {
-                String[] lineItems = line.split("\t");
-                int queryId = tryParseInt(lineItems[0], "Error en el archivo de tests de relevancia.");
-
-                Map<String, Integer> map = data.containsKey(queryId)? data.get(queryId) : new HashMap<>();
-                int relev = tryParseInt(lineItems[2], "Error en el archivo de tests de relevancia.");
-                map.put(lineItems[1], relev);
-                data.put(queryId, map);
-            }
-        } catch (FileNotFoundException e) {
-            System.err.println("No se ha encontrado el archivo de tests de relevancia.");
-            System.exit(1);
-        } catch (IOException e) {
-            System.err.println("Excepción de E/S al leer el archivo de tests de relevancia: " + e.getMessage());
-            System.exit(1);
-        }
-        return data;
+            out.append("Documento relevante.").append(nl).append(nl);
     }
 
     private static double tryParseDouble(String n, String errMsg) {
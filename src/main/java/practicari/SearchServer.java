@@ -0,0 +1,542 @@
+package practicari;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Servidor de búsqueda local que mantiene el índice abierto entre consultas, para no pagar en cada una el
+ * arranque de la JVM, la apertura del índice y la caché de páginas fría.
+ *
+ * Escucha en localhost con el servidor HTTP del JDK y responde en JSON:
+ * <ul>
+ *   <li>{@code GET /search?q=<query>&model=<bm25/jm>&param=<k1/lambda>&depth=<n>&stored=<true/false>}: ranking
+ *   de la query con la similitud y profundidad de la petición (también por POST con los parámetros en el
+ *   cuerpo, como formulario)</li>
+ *   <li>{@code GET /status}: documentos, segmentos y versión del índice abierto, y estadísticas de las cachés</li>
+ *   <li>{@code POST /refresh}: reabre el índice en el momento si hay un commit nuevo</li>
+ * </ul>
+ *
+ * El buscador lo gestiona un {@link SearcherManager} (o uno equivalente sobre los shards), que se refresca
+ * periódicamente: cuando {@link IndexTrecCovid} hace un commit, incluidos sus puntos de control, las búsquedas
+ * siguientes ven los documentos nuevos sin reiniciar el servidor. Los rankings de las queries repetidas se
+ * guardan en una {@link ResultCache}, que se vacía al reabrir el índice.
+ */
+public class SearchServer {
+    private static final int MAX_DEPTH = 10000;
+
+    private final ReferenceManager<IndexSearcher> manager;
+    private final TrecSearcherFactory searcherFactory;
+    private final ResultCache results;
+    private final Analyzer analyzer = new StandardAnalyzer();
+    private final ObjectWriter json = JsonMapper.builder().build().writer();
+    private final String indexPath;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private SearchServer(String indexPath, ReferenceManager<IndexSearcher> manager,
+                         TrecSearcherFactory searcherFactory, ResultCache results) {
+        this.indexPath = indexPath;
+        this.manager = manager;
+        this.searcherFactory = searcherFactory;
+        this.results = results;
+        manager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {}
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    refreshes.incrementAndGet();
+                    // los rankings del índice anterior ya no se pueden pedir, la clave incluye el reader
+                    if (results != null)
+                        results.clear();
+                    System.out.println("Índice reabierto: " + numDocs() + " documentos");
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        String indexPath = null;
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors(); // Peticiones atendidas a la vez
+        int searchThreads = 1; // Hilos para recorrer los segmentos del índice en paralelo en cada búsqueda
+        double refreshSeconds = 1; // Cada cuánto se comprueba si hay un commit nuevo en el índice
+        int resultCacheEntries = 10000; // Rankings guardados en memoria (0: sin caché de rankings)
+        int resultCacheMB = 64; // Tamaño máximo de los rankings guardados en memoria
+        int queryCacheMB = -1; // Tamaño de la caché de queries de Lucene (-1: la de Lucene por defecto)
+        String queryCachePolicy = null; // Política de la caché de queries de Lucene
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    break;
+                case "-port":
+                    port = tryParseInt(args[++i], "Argumento -port no es un entero válido.");
+                    break;
+                case "-threads":
+                    threads = tryParseInt(args[++i], "Argumento -threads no es un entero válido.");
+                    break;
+                case "-searchthreads":
+                    searchThreads = tryParseInt(args[++i], "Argumento -searchthreads no es un entero válido.");
+                    break;
+                case "-refresh":
+                    refreshSeconds = tryParseDouble(args[++i], "Argumento -refresh no es un número válido.");
+                    break;
+                case "-resultcache":
+                    resultCacheEntries = tryParseInt(args[++i], "Argumento -resultcache no es un entero válido.");
+                    break;
+                case "-resultcachemb":
+                    resultCacheMB = tryParseInt(args[++i], "Argumento -resultcachemb no es un entero válido.");
+                    break;
+                case "-querycache":
+                    queryCacheMB = tryParseInt(args[++i], "Argumento -querycache no es un entero válido.");
+                    break;
+                case "-querycachepolicy":
+                    queryCachePolicy = args[++i];
+                    break;
+                default:
+                    System.err.println("Opción desconocida: " + args[i]);
+                    System.exit(1);
+                    break;
+            }
+        }
+
+        if (indexPath == null) {
+            System.err.println("Uso: java SearchServer -index <ruta> [-port <n>] [-threads <n>] " +
+                    "[-searchthreads <n>] [-refresh <s>] [-resultcache <n>] [-resultcachemb <MB>] " +
+                    "[-querycache <MB>] [-querycachepolicy <usage/always>]");
+            System.exit(1);
+        }
+        if (port < 0 || port > 65535) {
+            System.err.println("Opción -port debe ser un puerto entre 0 y 65535.");
+            System.exit(1);
+        } else if (threads < 1) {
+            System.err.println("Opción -threads debe ser un entero positivo.");
+            System.exit(1);
+        } else if (searchThreads < 1) {
+            System.err.println("Opción -searchthreads debe ser un entero positivo.");
+            System.exit(1);
+        } else if (refreshSeconds <= 0) {
+            System.err.println("Opción -refresh debe ser un número positivo.");
+            System.exit(1);
+        } else if (resultCacheEntries < 0) {
+            System.err.println("Opción -resultcache debe ser 0 o un número natural.");
+            System.exit(1);
+        } else if (resultCacheMB < 1) {
+            System.err.println("Opción -resultcachemb debe ser un entero positivo.");
+            System.exit(1);
+        } else if (queryCacheMB < -1) {
+            System.err.println("Opción -querycache debe ser 0 o un número natural.");
+            System.exit(1);
+        } else if (queryCachePolicy != null && !TrecSearcherFactory.isQueryCachePolicy(queryCachePolicy)) {
+            System.err.println("Opción -querycachepolicy debe ser usage o always.");
+            System.exit(1);
+        }
+
+        TrecSearcherFactory searcherFactory = new TrecSearcherFactory(searchThreads);
+        searcherFactory.configureQueryCache(queryCacheMB, queryCachePolicy);
+        ResultCache results = resultCacheEntries == 0 ? null :
+                new ResultCache(resultCacheEntries, resultCacheMB * 1024L * 1024L);
+        List<Directory> directories = new ArrayList<>();
+        try {
+            SearchServer searchServer = new SearchServer(indexPath,
+                    openManager(Paths.get(indexPath), directories, searcherFactory), searcherFactory, results);
+
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            server.setExecutor(executor);
+            server.createContext("/search", searchServer::handleSearch);
+            server.createContext("/status", searchServer::handleStatus);
+            server.createContext("/refresh", searchServer::handleRefresh);
+
+            ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "searcher-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long refreshMillis = Math.max(1, (long) (refreshSeconds * 1000));
+            refresher.scheduleWithFixedDelay(searchServer::maybeRefresh, refreshMillis, refreshMillis,
+                    TimeUnit.MILLISECONDS);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(0);
+                executor.shutdown();
+                refresher.shutdownNow();
+                try {
+                    searchServer.manager.close();
+                    IOUtils.close(directories);
+                } catch (IOException e) {
+                    System.err.println("Error al cerrar el índice: " + e.getMessage());
+                }
+                searcherFactory.close();
+            }));
+
+            server.start();
+            System.out.println("Servidor de búsqueda en http://localhost:" + server.getAddress().getPort()
+                    + " con el índice " + indexPath + " (" + searchServer.numDocs() + " documentos)");
+        } catch (IOException e) {
+            System.err.println("Excepción de E/S: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Un SearcherManager para un índice único y uno sobre todos los shards para un índice dividido
+    private static ReferenceManager<IndexSearcher> openManager(Path indexPath, List<Directory> directories,
+                                                               TrecSearcherFactory searcherFactory)
+            throws IOException {
+        Directory rootDir = FSDirectory.open(indexPath);
+        if (DirectoryReader.indexExists(rootDir)) {
+            directories.add(rootDir);
+            return new SearcherManager(rootDir, searcherFactory);
+        }
+        rootDir.close();
+
+        List<Path> shardPaths = ShardedIndex.shardPaths(indexPath);
+        if (shardPaths.isEmpty())
+            throw new IndexNotFoundException("No hay ningún índice ni shards en " + indexPath);
+        for (Path shardPath : shardPaths)
+            directories.add(FSDirectory.open(shardPath));
+        return new ShardedSearcherManager(directories, searcherFactory);
+    }
+
+    private void maybeRefresh() {
+        try {
+            manager.maybeRefresh();
+        } catch (IOException e) {
+            System.err.println("Error al reabrir el índice: " + e.getMessage());
+        }
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = params(exchange);
+            String text = params.get("q");
+            if (text == null || text.isBlank())
+                throw new IllegalArgumentException("Falta el parámetro q con la query.");
+            String model = params.getOrDefault("model", "bm25").toLowerCase();
+            if (!model.equals("bm25") && !model.equals("jm"))
+                throw new IllegalArgumentException("Parámetro model debe ser bm25 o jm.");
+            float param = parseFloat(params.get("param"), model.equals("jm") ? 0.1f : 1.2f, "param");
+            int depth = parseInt(params.get("depth"), 10, "depth");
+            if (depth < 1 || depth > MAX_DEPTH)
+                throw new IllegalArgumentException("Parámetro depth debe estar entre 1 y " + MAX_DEPTH + ".");
+            boolean stored = Boolean.parseBoolean(params.getOrDefault("stored", "false"));
+
+            Similarity similarity = model.equals("jm") ?
+                    new LMJelinekMercerSimilarity(param) : new BM25Similarity(param, 0.75f);
+            // QueryParser no es thread-safe, así que cada petición usa el suyo
+            QueryParser queryParser = new QueryParser("text", analyzer);
+            long start = System.nanoTime();
+            Query query = queryParser.parse(text);
+
+            IndexSearcher managed = manager.acquire();
+            try {
+                // un IndexSearcher por petición sobre el reader compartido, para que cada una tenga su similitud
+                IndexReader reader = managed.getIndexReader();
+                IndexSearcher searcher = searcherFactory.newSearcher(reader);
+                searcher.setSimilarity(similarity);
+                // las queries repetidas se responden desde la caché sin recorrer las listas de postings
+                TopDocs topDocs = results != null ? results.get(searcher, query, depth) : null;
+                boolean cached = topDocs != null;
+                if (!cached) {
+                    topDocs = searcher.search(query, depth);
+                    if (results != null)
+                        results.put(searcher, query, depth, topDocs);
+                }
+
+                ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+                String[] ids = HitFields.values(reader, scoreDocs, "id", true);
+                String[] urls = HitFields.values(reader, scoreDocs, "url", false);
+                String[] pubmedIds = HitFields.values(reader, scoreDocs, "pubmed_id", false);
+                List<Hit> hits = new ArrayList<>(scoreDocs.length);
+                for (int i = 0; i < scoreDocs.length; i++) {
+                    String title = null;
+                    String body = null;
+                    if (stored) {
+                        Document doc = searcher.storedFields().document(scoreDocs[i].doc);
+                        title = doc.get("title");
+                        body = doc.get("text");
+                    }
+                    hits.add(new Hit(i + 1, ids[i], scoreDocs[i].score, urls[i], pubmedIds[i], title, body));
+                }
+                queries.incrementAndGet();
+                send(exchange, 200, new SearchResponse(text, model, param, depth, topDocs.totalHits.value,
+                        (System.nanoTime() - start) / 1e6, cached, versions(reader), hits));
+            } finally {
+                manager.release(managed);
+            }
+        } catch (IllegalArgumentException | ParseException e) {
+            send(exchange, 400, new ErrorResponse(e.getMessage()));
+        } catch (IOException | RuntimeException e) {
+            send(exchange, 500, new ErrorResponse(e.toString()));
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, status());
+        } catch (IOException | RuntimeException e) {
+            send(exchange, 500, new ErrorResponse(e.toString()));
+        }
+    }
+
+    private void handleRefresh(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, new ErrorResponse("Usa POST para reabrir el índice."));
+            return;
+        }
+        try {
+            // espera si el refresco periódico está en marcha, así la respuesta ya ve el último commit
+            manager.maybeRefreshBlocking();
+            send(exchange, 200, status());
+        } catch (IOException | RuntimeException e) {
+            send(exchange, 500, new ErrorResponse(e.toString()));
+        }
+    }
+
+    private Status status() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            return new Status(indexPath, reader instanceof MultiReader, reader.numDocs(), reader.leaves().size(),
+                    versions(reader), refreshes.get(), queries.get(), results != null ? results.stats() : null,
+                    searcherFactory.queryCacheStats());
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    private int numDocs() {
+        try {
+            IndexSearcher searcher = manager.acquire();
+            try {
+                return searcher.getIndexReader().numDocs();
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Versión de cada índice abierto (una por shard), para saber qué commit ha respondido a una búsqueda
+    private static long[] versions(IndexReader reader) {
+        List<DirectoryReader> readers = directoryReaders(reader);
+        long[] versions = new long[readers.size()];
+        for (int i = 0; i < versions.length; i++)
+            versions[i] = readers.get(i).getVersion();
+        return versions;
+    }
+
+    private static List<DirectoryReader> directoryReaders(IndexReader reader) {
+        if (reader instanceof DirectoryReader)
+            return List.of((DirectoryReader) reader);
+        List<DirectoryReader> readers = new ArrayList<>();
+        for (IndexReaderContext child : reader.getContext().children())
+            readers.add((DirectoryReader) child.reader());
+        return readers;
+    }
+
+    // Parámetros de la URL y, en un POST, los del cuerpo como formulario
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        addParams(params, exchange.getRequestURI().getRawQuery());
+        if (exchange.getRequestMethod().equals("POST")) {
+            try (InputStream in = exchange.getRequestBody()) {
+                addParams(params, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static void addParams(Map<String, String> params, String encoded) {
+        if (encoded == null || encoded.isEmpty())
+            return;
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static float parseFloat(String value, float defaultValue, String name) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parámetro " + name + " no es un número válido.");
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue, String name) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parámetro " + name + " no es un entero válido.");
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, Object response) throws IOException {
+        byte[] body = json.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Respuestas JSON
+    private record SearchResponse(String query, String model, float param, int depth, long totalHits,
+                                  double tookMs, boolean cached, long[] indexVersions, List<Hit> hits) {}
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private record Hit(int rank, String id, float score, String url, String pubmedId, String title,
+                       String text) {}
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private record Status(String index, boolean sharded, int numDocs, int segments, long[] indexVersions,
+                          long refreshes, long queries, ResultCache.Stats resultCache, String queryCache) {}
+
+    private record ErrorResponse(String error) {}
+
+    /**
+     * Equivalente a {@link SearcherManager} para un índice dividido en shards: el buscador lee un
+     * {@link MultiReader} sobre un {@link DirectoryReader} por shard y al refrescar sólo se reabren los shards
+     * con un commit nuevo; los demás se comparten con la versión anterior.
+     */
+    private static final class ShardedSearcherManager extends ReferenceManager<IndexSearcher> {
+        private final TrecSearcherFactory searcherFactory;
+
+        ShardedSearcherManager(List<Directory> directories, TrecSearcherFactory searcherFactory)
+                throws IOException {
+            this.searcherFactory = searcherFactory;
+            DirectoryReader[] shards = new DirectoryReader[directories.size()];
+            try {
+                for (int i = 0; i < shards.length; i++)
+                    shards[i] = DirectoryReader.open(directories.get(i));
+            } catch (IOException e) {
+                IOUtils.closeWhileHandlingException(shards);
+                throw e;
+            }
+            current = newSearcher(shards, List.of(shards));
+        }
+
+        // El MultiReader no cierra los shards sino que les suma una referencia, y la suelta al cerrarse. Los
+        // readers recién abiertos le ceden la suya, así se cierran con la última versión que los usa
+        private IndexSearcher newSearcher(DirectoryReader[] shards, List<DirectoryReader> opened) throws IOException {
+            MultiReader reader;
+            try {
+                reader = new MultiReader(shards, false);
+            } finally {
+                for (DirectoryReader shard : opened)
+                    shard.decRef();
+            }
+            return searcherFactory.newSearcher(reader, null);
+        }
+
+        @Override
+        protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+            List<DirectoryReader> previous = directoryReaders(referenceToRefresh.getIndexReader());
+            DirectoryReader[] shards = new DirectoryReader[previous.size()];
+            List<DirectoryReader> opened = new ArrayList<>();
+            try {
+                for (int i = 0; i < shards.length; i++) {
+                    DirectoryReader reopened = DirectoryReader.openIfChanged(previous.get(i));
+                    if (reopened != null)
+                        opened.add(reopened);
+                    shards[i] = reopened != null ? reopened : previous.get(i);
+                }
+            } catch (IOException e) {
+                IOUtils.closeWhileHandlingException(opened);
+                throw e;
+            }
+            return opened.isEmpty() ? null : newSearcher(shards, opened);
+        }
+
+        @Override
+        protected boolean tryIncRef(IndexSearcher reference) {
+            return reference.getIndexReader().tryIncRef();
+        }
+
+        @Override
+        protected void decRef(IndexSearcher reference) throws IOException {
+            reference.getIndexReader().decRef();
+        }
+
+        @Override
+        protected int getRefCount(IndexSearcher reference) {
+            return reference.getIndexReader().getRefCount();
+        }
+    }
+
+    private static double tryParseDouble(String n, String errMsg) {
+        try {
+            return Double.parseDouble(n);
+        } catch (NumberFormatException e) {
+            System.err.println("Error de parsing: " + errMsg);
+            System.exit(1);
+        }
+        return 0;
+    }
+
+    private static int tryParseInt(String n, String errMsg) {
+        try {
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            System.err.println("Error de parsing: " + errMsg);
+            System.exit(1);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,114 @@
+package practicari;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Índice abierto para búsqueda, ya sea un único índice en la carpeta indicada o un conjunto de
+ * shards en subcarpetas {@code shard-<n>} creados por {@link IndexTrecCovid} con -shards.
+ *
+ * Los shards se leen con un {@link MultiReader}, así que el {@link org.apache.lucene.search.IndexSearcher}
+ * calcula las estadísticas de términos y de colección sobre todos ellos a la vez, y las puntuaciones de
+ * BM25 y JM coinciden con las del índice construido sin shards.
+ */
+public class ShardedIndex implements Closeable {
+    public static final String SHARD_PREFIX = "shard-";
+
+    private final List<Directory> directories;
+    private final IndexReader reader;
+
+    private ShardedIndex(List<Directory> directories, IndexReader reader) {
+        this.directories = directories;
+        this.reader = reader;
+    }
+
+    public static ShardedIndex open(Path indexPath) throws IOException {
+        Directory rootDir = FSDirectory.open(indexPath);
+        if (DirectoryReader.indexExists(rootDir))
+            return new ShardedIndex(List.of(rootDir), DirectoryReader.open(rootDir));
+        rootDir.close();
+
+        List<Path> shardPaths = shardPaths(indexPath);
+        if (shardPaths.isEmpty())
+            throw new IndexNotFoundException("No hay ningún índice ni shards en " + indexPath);
+
+        List<Directory> directories = new ArrayList<>();
+        IndexReader[] shardReaders = new IndexReader[shardPaths.size()];
+        try {
+            for (int i = 0; i < shardPaths.size(); i++) {
+                Directory dir = FSDirectory.open(shardPaths.get(i));
+                directories.add(dir);
+                shardReaders[i] = DirectoryReader.open(dir);
+            }
+        } catch (IOException e) {
+            IOUtils.closeWhileHandlingException(shardReaders);
+            IOUtils.closeWhileHandlingException(directories);
+            throw e;
+        }
+        return new ShardedIndex(directories, new MultiReader(shardReaders, true));
+    }
+
+    // Ruta de la carpeta del shard i dentro de la carpeta del índice
+    public static Path shardPath(Path indexPath, int shard) {
+        return indexPath.resolve(SHARD_PREFIX + shard);
+    }
+
+    // Carpetas de shards presentes en la carpeta del índice, ordenadas por número de shard
+    public static List<Path> shardPaths(Path indexPath) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        if (!Files.isDirectory(indexPath))
+            return paths;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexPath, SHARD_PREFIX + "*")) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path))
+                    paths.add(path);
+            }
+        }
+        paths.sort(Comparator.comparingInt(ShardedIndex::shardNumber));
+        return paths;
+    }
+
+    private static int shardNumber(Path shardPath) {
+        try {
+            return Integer.parseInt(shardPath.getFileName().toString().substring(SHARD_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    public IndexReader reader() {
+        return reader;
+    }
+
+    public boolean isSharded() {
+        return reader instanceof MultiReader;
+    }
+
+    public List<Directory> directories() {
+        return directories;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } finally {
+            IOUtils.close(directories);
+        }
+    }
+}
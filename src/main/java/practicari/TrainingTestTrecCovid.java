@@ -1,30 +1,22 @@
 package practicari;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-
-import com.fasterxml.jackson.databind.MappingIterator;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 
 import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-
-import org.apache.lucene.document.Document;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import java.nio.file.Files;
 import org.apache.lucene.search.Query;
@@ -35,9 +27,31 @@ public class TrainingTestTrecCovid {
     private static final String usage = "Uso:\n" +
             "-evaljm <int1-int2> <int3-int4>\n" +
             "-evalbm25 <int1-int2> <int3-int4> (las opciones -evaljm -evalbm25 son mutuamente excluyentes)\n" +
+            "-kfold <k>: validación cruzada; las queries de <int1-int2> se reparten en k bloques y cada bloque se " +
+            "evalúa con el mejor valor del resto (no se indica rango de test).\n" +
             "-cut <n>: n indica el corte en el ranking para el cómputo de la métrica.\n" +
             "-metrica P | R | MRR | MAP: indica la métrica computada y optimizada en el corte n.\n" +
-            "-index <ruta>: ruta de la carpeta que contiene el índice.\n";
+            "-index <ruta>: ruta de la carpeta que contiene el índice.\n" +
+            "-searchthreads <n>: hilos para recorrer los segmentos del índice en paralelo en cada búsqueda.\n" +
+            "-threads <n>: hilos para evaluar a la vez las combinaciones de query y valor de k1/lambda.\n" +
+            "-rescore: recorre el índice una sola vez por query y puntúa en memoria los candidatos para cada " +
+            "valor de k1/lambda.\n" +
+            "-cuts <n1,n2,...>: además calcula P, R, AP, RR, nDCG y bpref en todos esos cortes para cada query y " +
+            "valor de k1/lambda, y los escribe en un único CSV.\n" +
+            "-cache <ruta>: carpeta de la caché de rankings; las búsquedas ya hechas con el mismo índice no se " +
+            "repiten.\n" +
+            "-cachesize <MB>: tamaño máximo de la caché de rankings (256 MB por defecto).\n" +
+            "-resultcache <n>: guarda en memoria hasta n rankings, para no repetir las búsquedas dentro de la " +
+            "ejecución.\n" +
+            "-resultcachemb <MB>: tamaño máximo de los rankings en memoria (64 MB por defecto).\n" +
+            "-querycache <MB>: tamaño de la caché de queries de Lucene (0 la desactiva).\n" +
+            "-querycachepolicy usage | always: política de la caché de queries de Lucene.\n" +
+            "-optimize: en lugar de la rejilla fija, busca k1/lambda en un intervalo continuo de grueso a fino.\n" +
+            "-tuneb: con -evalbm25, optimiza k1 y b a la vez (implica -optimize).\n" +
+            "-tolerance <t>: con -optimize, mejora mínima de la métrica para seguir afinando (0.0001 por " +
+            "defecto).\n" +
+            "-termstates: busca los términos de las queries en el índice una sola vez para todos los valores de " +
+            "k1/lambda.\n";
 
     public static void main(String[] args) {
 
@@ -48,6 +62,22 @@ public class TrainingTestTrecCovid {
         int[] trainingQueries = new int[2];
         int[] testQueries = new int[2];
         String metric = null;
+        int searchThreads = 1;
+        int threads = 1;
+        boolean rescore = false;
+        Evaluator evaluator = null;
+        String cacheDir = null;
+        int cacheSizeMB = 256;
+        int resultCacheEntries = 0;
+        int resultCacheMB = 64;
+        int queryCacheMB = -1;
+        String queryCachePolicy = null;
+        boolean termStates = false;
+        int kfold = 0;
+        boolean hasTestRange = false;
+        boolean optimize = false;
+        boolean tuneB = false;
+        double tolerance = 0.0001;
 
 
         for (int i = 0; i < args.length; i++) {
@@ -59,9 +89,12 @@ public class TrainingTestTrecCovid {
                     String[] evalArgsJM = args[++i].split("-");
                     trainingQueries[0] = Integer.parseInt(evalArgsJM[0]);
                     trainingQueries[1] = Integer.parseInt(evalArgsJM[1]);
-                    evalArgsJM = args[++i].split("-");
-                    testQueries[0] = Integer.parseInt(evalArgsJM[0]);
-                    testQueries[1] = Integer.parseInt(evalArgsJM[1]);
+                    if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                        evalArgsJM = args[++i].split("-");
+                        testQueries[0] = Integer.parseInt(evalArgsJM[0]);
+                        testQueries[1] = Integer.parseInt(evalArgsJM[1]);
+                        hasTestRange = true;
+                    }
                     break;
                 case "-evalbm25":
                     evalOption = "-evalbm25";
@@ -69,9 +102,12 @@ public class TrainingTestTrecCovid {
                     String[] evalArgsBM25 = args[++i].split("-");
                     trainingQueries[0] = Integer.parseInt(evalArgsBM25[0]);
                     trainingQueries[1] = Integer.parseInt(evalArgsBM25[1]);
-                    evalArgsBM25 = args[++i].split("-");
-                    testQueries[0] = Integer.parseInt(evalArgsBM25[0]);
-                    testQueries[1] = Integer.parseInt(evalArgsBM25[1]);
+                    if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                        evalArgsBM25 = args[++i].split("-");
+                        testQueries[0] = Integer.parseInt(evalArgsBM25[0]);
+                        testQueries[1] = Integer.parseInt(evalArgsBM25[1]);
+                        hasTestRange = true;
+                    }
                     break;
                 case "-cut":
                     cut = tryParse(args[++i], "Parámetro \"cut\" no es un entero válido");
@@ -82,6 +118,81 @@ public class TrainingTestTrecCovid {
                 case "-index":
                     indexDir = args[++i];
                     break;
+                case "-threads":
+                    threads = tryParse(args[++i], "Parámetro \"threads\" no es un entero válido");
+                    break;
+                case "-rescore":
+                    rescore = true;
+                    break;
+                case "-cuts":
+                    String[] cutArgs = args[++i].split(",");
+                    int[] cuts = new int[cutArgs.length];
+                    for (int c = 0; c < cutArgs.length; c++) {
+                        cuts[c] = tryParse(cutArgs[c], "Parámetro \"cuts\" no es una lista de enteros válida");
+                        if (cuts[c] < 1) {
+                            System.err.println("Argumento \"cuts\" inválido.\n");
+                            System.exit(0);
+                        }
+                    }
+                    evaluator = new Evaluator(cuts);
+                    break;
+                case "-cache":
+                    cacheDir = args[++i];
+                    break;
+                case "-cachesize":
+                    cacheSizeMB = tryParse(args[++i], "Parámetro \"cachesize\" no es un entero válido");
+                    break;
+                case "-resultcache":
+                    resultCacheEntries = tryParse(args[++i], "Parámetro \"resultcache\" no es un entero válido");
+                    break;
+                case "-resultcachemb":
+                    resultCacheMB = tryParse(args[++i], "Parámetro \"resultcachemb\" no es un entero válido");
+                    break;
+                case "-querycache":
+                    queryCacheMB = tryParse(args[++i], "Parámetro \"querycache\" no es un entero válido");
+                    if (queryCacheMB < 0) {
+                        System.err.println("Argumento \"querycache\" inválido.\n");
+                        System.exit(0);
+                    }
+                    break;
+                case "-querycachepolicy":
+                    queryCachePolicy = args[++i];
+                    if (!TrecSearcherFactory.isQueryCachePolicy(queryCachePolicy)) {
+                        System.err.println("Argumento \"querycachepolicy\" inválido.\n");
+                        System.exit(0);
+                    }
+                    break;
+                case "-kfold":
+                    kfold = tryParse(args[++i], "Parámetro \"kfold\" no es un entero válido");
+                    if (kfold < 2) {
+                        System.err.println("Argumento \"kfold\" inválido.\n");
+                        System.exit(0);
+                    }
+                    break;
+                case "-optimize":
+                    optimize = true;
+                    break;
+                case "-tuneb":
+                    optimize = true;
+                    tuneB = true;
+                    break;
+                case "-tolerance":
+                    tolerance = tryParseDouble(args[++i], "Parámetro \"tolerance\" no es un número válido");
+                    if (tolerance < 0) {
+                        System.err.println("Argumento \"tolerance\" inválido.\n");
+                        System.exit(0);
+                    }
+                    break;
+                case "-termstates":
+                    termStates = true;
+                    break;
+                case "-searchthreads":
+                    searchThreads = tryParse(args[++i], "Parámetro \"searchthreads\" no es un entero válido");
+                    if (searchThreads < 1) {
+                        System.err.println("Argumento \"searchthreads\" inválido.\n");
+                        System.exit(0);
+                    }
+                    break;
                 default:
                     System.out.println("Argumento incorrecto: " + args[i]);
                     System.out.print(usage);
@@ -90,6 +201,19 @@ public class TrainingTestTrecCovid {
         }
 
         validateParams(evaljm, evalbm25, cut, metric, indexDir);
+        if (kfold == 0 && !hasTestRange) {
+            System.err.println("El rango de queries de test es obligatorio salvo con -kfold.\n");
+            System.exit(0);
+        } else if (kfold > 0 && hasTestRange) {
+            System.err.println("Con -kfold sólo se indica un rango de queries.\n");
+            System.exit(0);
+        } else if (kfold > 0 && optimize) {
+            System.err.println("La opción -optimize no se puede combinar con -kfold.\n");
+            System.exit(0);
+        } else if (tuneB && evaljm) {
+            System.err.println("La opción -tuneb sólo se aplica a -evalbm25.\n");
+            System.exit(0);
+        }
 
         Path indexPath = Paths.get(indexDir);
         if (!Files.isDirectory(indexPath)) {
@@ -97,22 +221,45 @@ public class TrainingTestTrecCovid {
             System.exit(-1);
         }
 
-        // Configurar el analizador
-        Analyzer analyzer = new StandardAnalyzer();
+        // Abrir el índice (único o dividido en shards)
+        try (ShardedIndex index = ShardedIndex.open(Paths.get(indexDir));
+             TrecSearcherFactory searcherFactory = new TrecSearcherFactory(searchThreads)) {
+            IndexReader indexReader = index.reader();
+            searcherFactory.configureQueryCache(queryCacheMB, queryCachePolicy);
+
+            // queries ya analizadas y parseadas (queries.jsonl.qset), las mismas para todos los valores del parámetro
+            QuerySet querySet = QuerySet.read(new File(queryFilePath));
+            if (termStates)
+                querySet = querySet.withTermStates(indexReader);
 
+            // rankings de ejecuciones anteriores con el mismo índice, query, similitud y profundidad
+            RankingCache cache = cacheDir == null ? null :
+                    new RankingCache(Paths.get(cacheDir), Math.max(1, cacheSizeMB) * 1024L * 1024L, indexReader);
+            // y rankings de esta ejecución, en memoria
+            ResultCache results = resultCacheEntries <= 0 ? null :
+                    new ResultCache(resultCacheEntries, Math.max(1, resultCacheMB) * 1024L * 1024L);
 
-        try (Directory dir = FSDirectory.open(Paths.get(indexDir));
-             IndexReader indexReader = DirectoryReader.open(dir)) {
+            // Cada valor de k1/lambda tendrá su propio buscador sobre el mismo IndexReader
+            SweepContext context = new SweepContext(searcherFactory, indexReader, Math.max(1, threads), rescore,
+                    evaluator, cache, results);
 
-            // Crear el buscador
-            IndexSearcher searcher = new IndexSearcher(indexReader);
+            // con -optimize los parámetros se buscan en intervalos continuos en lugar de en la rejilla fija
+            Optimization optimization = optimize ? new Optimization(tolerance, tuneB) : null;
 
             // Evaluar y optimizar el modelo
             if (evalOption.equals("-evaljm")) {
-                evaluateAndOptimizeJMModel(searcher, analyzer, trainingQueries, testQueries, cut, metric);
+                evaluateAndOptimizeJMModel(context, querySet, trainingQueries, testQueries, kfold, optimization,
+                        cut, metric);
             } else if (evalOption.equals("-evalbm25")) {
-                evaluateAndOptimizeBM25Model(searcher, analyzer, trainingQueries, testQueries, cut, metric);
+                evaluateAndOptimizeBM25Model(context, querySet, trainingQueries, testQueries, kfold, optimization,
+                        cut, metric);
             }
+            if (cache != null)
+                System.out.println("Caché de rankings: " + cache.hits() + " aciertos, " + cache.misses() + " fallos");
+            if (results != null)
+                System.out.println("Rankings en memoria: " + results.stats());
+            if (searcherFactory.queryCacheStats() != null)
+                System.out.println("Caché de queries de Lucene: " + searcherFactory.queryCacheStats());
 
         } catch (IOException e) {
             System.err.println("Excepción de E/S: " + e.getMessage());
@@ -142,30 +289,47 @@ public class TrainingTestTrecCovid {
         }
     }
     //JM model
-    private static void evaluateAndOptimizeJMModel(IndexSearcher searcher, Analyzer analyzer,
-                                                   int[] trainingQueries, int[] testQueries, int cut,
-                                                   String metric) {
+    private static void evaluateAndOptimizeJMModel(SweepContext context, QuerySet querySet,
+                                                   int[] trainingQueries, int[] testQueries, int kfold,
+                                                   Optimization optimization, int cut, String metric) {
         double[] lambdas = {0.001, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1.0};
-        evaluateAndOptimizeModel(searcher, analyzer, trainingQueries, testQueries, cut, metric, lambdas, "JM");
+        // con -optimize, lambda en el mismo intervalo que la rejilla
+        ParameterSearch search = optimization == null ? null :
+                new ParameterSearch(new double[] {0.001}, new double[] {1.0}, optimization.tolerance());
+        if (kfold > 0)
+            crossValidateModel(context, querySet, trainingQueries, kfold, cut, metric, lambdas, "JM");
+        else
+            evaluateAndOptimizeModel(context, querySet, trainingQueries, testQueries, cut, metric, lambdas, search,
+                    "JM");
     }
 
     //BM25 model
-    private static void evaluateAndOptimizeBM25Model(IndexSearcher searcher, Analyzer analyzer,
-                                                     int[] trainingQueries, int[] testQueries, int cut,
-                                                     String metric) {
+    private static void evaluateAndOptimizeBM25Model(SweepContext context, QuerySet querySet,
+                                                     int[] trainingQueries, int[] testQueries, int kfold,
+                                                     Optimization optimization, int cut, String metric) {
         double[] k1Values = {0.4, 0.6, 0.8, 1.0, 1.2, 1.4, 1.6, 1.8, 2.0};
-        evaluateAndOptimizeModel(searcher, analyzer, trainingQueries, testQueries, cut, metric, k1Values, "BM25");
+        // con -optimize, k1 en el mismo intervalo que la rejilla y, con -tuneb, b en [0, 1]
+        ParameterSearch search = null;
+        if (optimization != null && optimization.tuneB())
+            search = new ParameterSearch(new double[] {0.4, 0.0}, new double[] {2.0, 1.0}, optimization.tolerance());
+        else if (optimization != null)
+            search = new ParameterSearch(new double[] {0.4}, new double[] {2.0}, optimization.tolerance());
+        if (kfold > 0)
+            crossValidateModel(context, querySet, trainingQueries, kfold, cut, metric, k1Values, "BM25");
+        else
+            evaluateAndOptimizeModel(context, querySet, trainingQueries, testQueries, cut, metric, k1Values, search,
+                    "BM25");
     }
 
-    // Evalúa y optimiza un modelo de recuperación de información .
-    private static void evaluateAndOptimizeModel(IndexSearcher searcher, Analyzer analyzer,
+    // Evalúa y optimiza un modelo de recuperación de información . Sin search se prueban los valores de
+    // paramValues; con search, los que elija la búsqueda adaptativa.
+    private static void evaluateAndOptimizeModel(SweepContext context, QuerySet querySet,
                                                  int[] trainingRange, int[] testRange, int cut, String metric,
-                                                 double[] paramValues, String similarityType) {
-        QueryParser parser = new QueryParser("text", analyzer);
-
+                                                 double[] paramValues, ParameterSearch search,
+                                                 String similarityType) {
         // Leer el archivo de juicios de relevancia (test.tsv)
         File testFile = new File(testFilePath);
-        Map<Integer, Map<String, Integer>> relevances = readTsv(testFile);
+        Qrels qrels = Qrels.read(testFile);
 
 
         // Crear archivos CSV para entrenamiento y test
@@ -177,175 +341,108 @@ public class TrainingTestTrecCovid {
                 + testRange[0] + "-" + testRange[1] + "." + metric + cut + ".test.csv");
 
         try {
+            // los juicios se traducen a ids de documento una sola vez para todas las búsquedas
+            ResolvedQrels judgments = ResolvedQrels.resolve(qrels, context.reader());
+
             // writers para archivos CSV de entrenamiento y test
             PrintWriter trainingWriter = new PrintWriter(trainingCsvFile);
             PrintWriter testWriter = new PrintWriter(testCsvFile);
 
-            // Escribir encabezados en archivos CSV de entrenamiento
-            trainingWriter.print(metric + "@" + cut);
-            for (double param : paramValues) {
-                trainingWriter.print("," + param);
-            }
-            trainingWriter.print(System.lineSeparator());
-
-            // leer jsonl de queries
-            File queryFile = new File(queryFilePath);
-            ObjectReader queryReader = JsonMapper.builder().findAndAddModules().build()
-                    .readerFor(QueryJsonl.class);
-            List<QueryJsonl> trainingQueries = new LinkedList<>();
-            MappingIterator<QueryJsonl> itr = queryReader.readValues(queryFile);
-
-            while (itr.hasNext()) {
-                QueryJsonl query;
-                query = itr.next();
-                if (query.id() >= trainingRange[0] && query.id() <= trainingRange[1])
-                    trainingQueries.add(query);
-            }
+            // queries de entrenamiento, ya parseadas
+            List<QuerySet.Compiled> trainingQueries = querySet.range(trainingRange[0], trainingRange[1]);
 
             int numTrainingQueries = trainingQueries.size();
-            double[][] scoreMatrix = new double[trainingQueries.size()][paramValues.length];
+
+            Query[] parsedQueries = new Query[trainingQueries.size()];
+            boolean[] judged = new boolean[trainingQueries.size()];
             int row = 0;
-            for (QueryJsonl query : trainingQueries) {
-                int column = -1;
-                for (double param : paramValues) {          // para cada query probamos con todos los valores de k1/lambda
-                    column++;
-
-                    searcher.setSimilarity(
-                            similarityType.equals("JM")?
-                                    new LMJelinekMercerSimilarity((float) param) : new BM25Similarity((float) param, 0.75f)
-                    );
-                    Query q = parser.parse(query.metadata().query());
-                    Map<String, Integer> thisRelevances = relevances.get(query.id());
-
-                    // Ranking de documentos  al hacer una búsqueda
-                    TopDocs topDocs = searcher.search(q, cut); // sacamos los top docs para las métricas
-                    List<ScoreDoc> scoreDocs = List.of(topDocs.scoreDocs);
-                    int relevantQuery = 0;
-
-                    for (String corpusID : thisRelevances.keySet()) {
-                        // para cada doc, vemos si es relevante para esta query
-                        if (thisRelevances.get(corpusID) > 0)
-                            relevantQuery++;
-                    }
+            for (QuerySet.Compiled query : trainingQueries) {
+                judged[row] = judgments.forQuery(query.id()).numRelevant() > 0;
+                parsedQueries[row++] = query.parsed();
+                if (!judged[row - 1])
+                    numTrainingQueries--;    // no tenemos en cuenta para las métricas las queries sin resultados
+            }
+            if (numTrainingQueries == 0) {
+                System.err.println("Ninguna query de entrenamiento tiene documentos relevantes: "
+                        + trainingRange[0] + "-" + trainingRange[1]);
+                System.exit(1);
+            }
+            Sweep sweep = search == null ?
+                    gridSweep(context, trainingQueries, parsedQueries, judgments, cut, metric, paramValues,
+                            similarityType) :
+                    adaptiveSweep(context, trainingQueries, parsedQueries, judgments, cut, metric, search,
+                            similarityType, judged);
+            double[][] scoreMatrix = sweep.scoreMatrix();
+            double[][][] metricMatrix = sweep.metricMatrix();
+            String[] labels = sweep.labels();
 
-                    double score = 0;
+            // Escribir encabezados en archivos CSV de entrenamiento
+            trainingWriter.print(metric + "@" + cut);
+            for (String label : labels) {
+                trainingWriter.print("," + label);
+            }
+            trainingWriter.print(System.lineSeparator());
 
+            row = 0;
+            for (QuerySet.Compiled query : trainingQueries) {
+                for (int column = 0; column < labels.length; column++) {
+                    // print query metric
                     trainingWriter.print(query.id());
-
-                    if (relevantQuery == 0 && column == 0) {    // no tenemos en cuenta para las métricas las queries sin resultados
-                        numTrainingQueries--;
-                    } else {
-                        switch (metric) {
-                            case "P":
-                                score = calculatePrecision(scoreDocs, searcher, thisRelevances, cut);
-                                break;
-                            case "R":
-                                score = calculateRecall(scoreDocs, searcher, thisRelevances, relevantQuery);
-                                break;
-                            case "MAP":
-                                score = calculateAP(scoreDocs, searcher, thisRelevances, relevantQuery);
-                                break;
-                            case "MRR":
-                                score = calculateRR(scoreDocs, searcher, thisRelevances);
-                                break;
-                            default:
-                                System.err.println("Valor de métrica no válido: " + metric);
-                                System.exit(1);
-                                break;
-                        }
-                    }
-
-                    // save & print query metric
-                    scoreMatrix[row][column] = score;
-                    trainingWriter.print("," + score);
+                    trainingWriter.print("," + scoreMatrix[row][column]);
                 }
                 trainingWriter.print(System.lineSeparator());
                 row++;
             }
 
             // calcular y escribir promedios
-            double bestScore = 0;
-            int bestColumn = 0;
+            double[] means = columnMeans(scoreMatrix, judged);
             trainingWriter.print("Promedios:");
-            for(int i = 0; i < paramValues.length; i++) {  // en cada columna calcula el promedio y lo escribe
-                double sumScore = 0;
-                for (int j = 0; j < trainingQueries.size(); j++) {
-                    sumScore += scoreMatrix[j][i];
-                }
-                double mean = sumScore / numTrainingQueries;    // suma de la columna entre num de queries relevantes de cut
+            for (double mean : means) {
                 trainingWriter.print("," + mean);
-                if(mean > bestScore) {
-                    bestScore = mean;
-                    bestColumn = i;
-                }
             }
             trainingWriter.print(System.lineSeparator());
+            int bestColumn = bestColumn(means);
 
-            double bestParam = paramValues[bestColumn];
+            double[] bestPoint = sweep.points()[bestColumn];
+            double bestParam = bestPoint[0];
 
-            // TEST ----------------------------------------------------------------------------------------
+            if (metricMatrix != null) {
+                writeMetricsCsv(new File("TREC-COVID." + similarityType.toLowerCase() + ".training."
+                                + trainingRange[0] + "-" + trainingRange[1] + ".metrics.csv"),
+                        context.evaluator(), trainingQueries, judgments, labels,
+                        paramName(similarityType, bestPoint.length), metricMatrix);
+            }
 
-            List<QueryJsonl> testQueries = new LinkedList<>();
-            MappingIterator<QueryJsonl> itr_test = queryReader.readValues(queryFile);
+            // TEST ----------------------------------------------------------------------------------------
 
-            while (itr_test.hasNext()) {
-                QueryJsonl query;
-                query = itr_test.next();
-                if (query.id() >= testRange[0] && query.id() <= testRange[1])
-                    testQueries.add(query);
-            }
+            List<QuerySet.Compiled> testQueries = querySet.range(testRange[0], testRange[1]);
 
             int numTestQueries = testQueries.size();
-            searcher.setSimilarity(
-                    similarityType.equals("JM")?
-                            new LMJelinekMercerSimilarity((float) bestParam) : new BM25Similarity((float) bestParam, 0.75f)
-            );
+            IndexSearcher searcher = context.newSearcher(similarityType, bestPoint);
 
             // Escribir encabezado en archivo CSV de test
             String paramName = similarityType.equals("JM")? "lambda = " : "k1 = ";
-            testWriter.println(paramName + bestParam + "," + metric + "@" + cut);
+            testWriter.println(paramName + bestParam + (bestPoint.length > 1 ? " b = " + bestPoint[1] : "") + ","
+                    + metric + "@" + cut);
 
             double sumTestScores = 0;
 
-            for (QueryJsonl query : testQueries) {
+            for (QuerySet.Compiled query : testQueries) {
 
-                Query q = parser.parse(query.metadata().query());
-                Map<String, Integer> thisRelevances = relevances.get(query.id());
+                Query q = query.parsed();
+                ResolvedQrels.Judgments thisRelevances = judgments.forQuery(query.id());
 
                 // Ranking de documentos  al hacer una búsqueda
-                TopDocs topDocs = searcher.search(q, cut); // sacamos los top docs para las métricas
+                TopDocs topDocs = context.search(searcher, q, cut); // sacamos los top docs para las métricas
                 List<ScoreDoc> scoreDocs = List.of(topDocs.scoreDocs);
-                int relevantQuery = 0;
-
-                for (String corpusID : thisRelevances.keySet()) {
-                    // para cada doc, vemos si es relevante para esta query
-                    if (thisRelevances.get(corpusID) > 0)
-                        relevantQuery++;
-                }
+                int relevantQuery = thisRelevances.numRelevant();
 
                 double score = 0;
 
                 if (relevantQuery == 0) {    // no tenemos en cuenta para las métricas las queries sin resultados
                     numTestQueries--;
                 } else {
-                    switch (metric) {
-                        case "P":
-                            score = calculatePrecision(scoreDocs, searcher, thisRelevances, cut);
-                            break;
-                        case "R":
-                            score = calculateRecall(scoreDocs, searcher, thisRelevances, relevantQuery);
-                            break;
-                        case "MAP":
-                            score = calculateAP(scoreDocs, searcher, thisRelevances, relevantQuery);
-                            break;
-                        case "MRR":
-                            score = calculateRR(scoreDocs, searcher, thisRelevances);
-                            break;
-                        default:
-                            System.err.println("Valor de métrica no válido: " + metric);
-                            System.exit(1);
-                            break;
-                    }
+                    score = computeMetric(metric, scoreDocs, thisRelevances, cut, relevantQuery);
                 }
 
                 testWriter.println(query.id() + "," + score);
@@ -365,8 +462,8 @@ public class TrainingTestTrecCovid {
         } catch (IOException e) {
             System.err.println("Error de E/S: " + e.getMessage());
             System.exit(1);
-        } catch (ParseException e) {
-            System.err.println("Error de parsing: " + e.getMessage());
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error al evaluar las queries: " + e.getMessage());
             System.exit(1);
         }
 
@@ -391,32 +488,418 @@ public class TrainingTestTrecCovid {
 
     }
 
-    private static double calculatePrecision(List<ScoreDoc> scoreDocs, IndexSearcher searcher,
-                                             Map<String, Integer> thisRelevances, int cut){
-        return (getRelevantN(scoreDocs, searcher, thisRelevances) / cut);
+    // Validación cruzada en k bloques. Cada query está en el entrenamiento de k-1 bloques y es de test en el
+    // restante, siempre con un valor de la misma rejilla, así que la matriz (query x valor) se calcula una sola
+    // vez, en paralelo, y cada bloque sólo elige columna sobre sus filas de entrenamiento y promedia las de test.
+    // Sólo se reparten las queries con documentos relevantes, para que ningún bloque se quede sin queries que
+    // cuenten en las métricas
+    private static void crossValidateModel(SweepContext context, QuerySet querySet, int[] range, int k, int cut,
+                                           String metric, double[] paramValues, String similarityType) {
+        Qrels qrels = Qrels.read(new File(testFilePath));
+        String paramName = similarityType.equals("JM")? "lambda" : "k1";
+        File csvFile = new File("TREC-COVID." + similarityType.toLowerCase() + ".kfold" + k + "."
+                + range[0] + "-" + range[1] + "." + metric + cut + ".csv");
+
+        try {
+            ResolvedQrels judgments = ResolvedQrels.resolve(qrels, context.reader());
+            // no tenemos en cuenta para las métricas las queries sin resultados
+            List<QuerySet.Compiled> queries = new ArrayList<>();
+            for (QuerySet.Compiled query : querySet.range(range[0], range[1])) {
+                if (judgments.forQuery(query.id()).numRelevant() > 0)
+                    queries.add(query);
+            }
+            if (queries.size() < k) {
+                System.err.println("No hay queries con documentos relevantes suficientes para " + k + " bloques: "
+                        + queries.size());
+                System.exit(1);
+            }
+
+            Query[] parsedQueries = new Query[queries.size()];
+            for (int row = 0; row < queries.size(); row++)
+                parsedQueries[row] = queries.get(row).parsed();
+            Sweep sweep = gridSweep(context, queries, parsedQueries, judgments, cut, metric, paramValues,
+                    similarityType);
+            double[][] scoreMatrix = sweep.scoreMatrix();
+
+            try (PrintWriter writer = new PrintWriter(csvFile)) {
+                writer.println("bloque,queries," + paramName + "," + metric + "@" + cut + " entrenamiento,"
+                        + metric + "@" + cut + " test");
+
+                double sumTestScores = 0;
+                int numTestQueries = 0;
+                for (int fold = 0; fold < k; fold++) {
+                    // bloques consecutivos en el orden de las queries
+                    int from = fold * queries.size() / k;
+                    int to = (fold + 1) * queries.size() / k;
+
+                    // con k no mayor que el número de queries, los dos lados tienen al menos una
+                    boolean[] training = new boolean[queries.size()];
+                    boolean[] test = new boolean[queries.size()];
+                    for (int row = 0; row < queries.size(); row++) {
+                        test[row] = row >= from && row < to;
+                        training[row] = !test[row];
+                    }
+                    double[] trainingMeans = columnMeans(scoreMatrix, training);
+                    int bestColumn = bestColumn(trainingMeans);
+                    double testMean = columnMeans(scoreMatrix, test)[bestColumn];
+                    sumTestScores += testMean * (to - from);
+                    numTestQueries += to - from;
+
+                    writer.println((fold + 1) + "," + queries.get(from).id() + "-" + queries.get(to - 1).id() + ","
+                            + paramValues[bestColumn] + "," + trainingMeans[bestColumn] + "," + testMean);
+                }
+                // promedio de todas las queries, cada una evaluada con el valor elegido sin ella
+                writer.println("Promedio:,,,," + (sumTestScores / numTestQueries));
+            }
+
+            if (sweep.metricMatrix() != null) {
+                writeMetricsCsv(new File("TREC-COVID." + similarityType.toLowerCase() + ".kfold" + k + "."
+                                + range[0] + "-" + range[1] + ".metrics.csv"),
+                        context.evaluator(), queries, judgments, sweep.labels(), paramName, sweep.metricMatrix());
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("Error al crear los writers: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error de E/S: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error al evaluar las queries: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            System.out.println("Contenido del archivo CSV de validación cruzada:");
+            for (String line : Files.readAllLines(csvFile.toPath()))
+                System.out.println(line);
+        } catch (IOException e) {
+            System.err.println("Error al leer los archivos CSV: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Barrido de la rejilla fija: un buscador por valor del parámetro, para no compartir una similitud mutable
+    // entre hilos, y todas las celdas (query, valor) se evalúan a la vez
+    private static Sweep gridSweep(SweepContext context, List<QuerySet.Compiled> queries, Query[] parsedQueries,
+                                   ResolvedQrels judgments, int cut, String metric, double[] paramValues,
+                                   String similarityType)
+            throws IOException, InterruptedException, ExecutionException {
+        double[][] points = new double[paramValues.length][];
+        IndexSearcher[] searchers = new IndexSearcher[paramValues.length];
+        for (int i = 0; i < paramValues.length; i++) {
+            points[i] = new double[] {paramValues[i]};
+            searchers[i] = context.newSearcher(similarityType, points[i]);
+        }
+        double[][][] metricMatrix = context.evaluator() == null ? null :
+                new double[queries.size()][paramValues.length][];
+        double[][] scoreMatrix = computeScoreMatrix(context, queries, parsedQueries, searchers,
+                judgments, cut, metric, metricMatrix, null);
+        return new Sweep(points, scoreMatrix, metricMatrix);
+    }
+
+    // Búsqueda adaptativa: cada ronda de la búsqueda se evalúa como un barrido con sus puntos, y con -rescore
+    // los candidatos de cada query se recogen una sola vez para todas las rondas. Las columnas quedan en el
+    // orden en que se evaluaron los puntos
+    private static Sweep adaptiveSweep(SweepContext context, List<QuerySet.Compiled> queries, Query[] parsedQueries,
+                                       ResolvedQrels judgments, int cut, String metric, ParameterSearch search,
+                                       String similarityType, boolean[] judged)
+            throws IOException, InterruptedException, ExecutionException {
+        Candidates[] candidates = new Candidates[queries.size()];
+        for (int row = 0; row < candidates.length; row++)
+            candidates[row] = new Candidates();
+        List<double[]> scoreColumns = new ArrayList<>();
+        List<double[][]> metricColumns = new ArrayList<>();
+
+        search.optimize(batch -> {
+            IndexSearcher[] searchers = new IndexSearcher[batch.size()];
+            for (int c = 0; c < searchers.length; c++)
+                searchers[c] = context.newSearcher(similarityType, batch.get(c));
+            double[][][] batchMetrics = context.evaluator() == null ? null :
+                    new double[queries.size()][batch.size()][];
+            double[][] batchScores = computeScoreMatrix(context, queries, parsedQueries, searchers,
+                    judgments, cut, metric, batchMetrics, candidates);
+
+            // media de cada punto sin las queries sin documentos relevantes, que quedan a 0
+            for (int c = 0; c < batch.size(); c++) {
+                double[] column = new double[queries.size()];
+                double[][] metricColumn = new double[queries.size()][];
+                for (int row = 0; row < queries.size(); row++) {
+                    if (judged[row])
+                        column[row] = batchScores[row][c];
+                    if (batchMetrics != null)
+                        metricColumn[row] = batchMetrics[row][c];
+                }
+                scoreColumns.add(column);
+                metricColumns.add(metricColumn);
+            }
+            return columnMeans(batchScores, judged);
+        });
+        System.out.println("Búsqueda adaptativa: " + search);
+
+        int numPoints = scoreColumns.size();
+        double[][] scoreMatrix = new double[queries.size()][numPoints];
+        double[][][] metricMatrix = context.evaluator() == null ? null : new double[queries.size()][numPoints][];
+        for (int c = 0; c < numPoints; c++) {
+            for (int row = 0; row < queries.size(); row++) {
+                scoreMatrix[row][c] = scoreColumns.get(c)[row];
+                if (metricMatrix != null)
+                    metricMatrix[row][c] = metricColumns.get(c)[row];
+            }
+        }
+        return new Sweep(search.points().toArray(new double[0][]), scoreMatrix, metricMatrix);
+    }
+
+    // Media de cada columna de la matriz sobre las filas marcadas; quien llama se asegura de que haya alguna
+    private static double[] columnMeans(double[][] scoreMatrix, boolean[] rows) {
+        int numColumns = scoreMatrix.length == 0 ? 0 : scoreMatrix[0].length;
+        double[] means = new double[numColumns];
+        int numRows = 0;
+        for (int row = 0; row < scoreMatrix.length; row++) {
+            if (!rows[row])
+                continue;
+            numRows++;
+            for (int column = 0; column < numColumns; column++)
+                means[column] += scoreMatrix[row][column];
+        }
+        for (int column = 0; column < numColumns; column++)
+            means[column] /= numRows;
+        return means;
+    }
+
+    // Columna con la media más alta; entre empatadas, la primera
+    private static int bestColumn(double[] means) {
+        double bestScore = 0;
+        int bestColumn = 0;
+        for (int column = 0; column < means.length; column++) {
+            if (means[column] > bestScore) {
+                bestScore = means[column];
+                bestColumn = column;
+            }
+        }
+        return bestColumn;
+    }
+
+    // Puntos evaluados en el entrenamiento ({lambda}, {k1} o {k1, b}) con sus métricas, una columna por punto
+    private record Sweep(double[][] points, double[][] scoreMatrix, double[][][] metricMatrix) {
+        String[] labels() {
+            String[] labels = new String[points.length];
+            for (int c = 0; c < points.length; c++)
+                labels[c] = points[c].length == 1 ? String.valueOf(points[c][0]) : points[c][0] + "/" + points[c][1];
+            return labels;
+        }
+    }
+
+    // Opciones de la búsqueda adaptativa (-optimize, -tuneb, -tolerance)
+    private record Optimization(double tolerance, boolean tuneB) {}
+
+    private static String[] labels(double[] paramValues) {
+        String[] labels = new String[paramValues.length];
+        for (int c = 0; c < paramValues.length; c++)
+            labels[c] = String.valueOf(paramValues[c]);
+        return labels;
+    }
+
+    private static String paramName(String similarityType, int dims) {
+        if (similarityType.equals("JM"))
+            return "lambda";
+        return dims > 1 ? "k1/b" : "k1";
+    }
+
+    // Candidatos de una query para -rescore: se recogen la primera vez que hacen falta y sirven para todas las
+    // llamadas a computeScoreMatrix que reciban el mismo objeto
+    private static final class Candidates {
+        private CandidateRescorer rescorer;
+        private boolean collected;
+
+        CandidateRescorer get(IndexSearcher searcher, Query query) throws IOException {
+            if (!collected) {
+                rescorer = CandidateRescorer.collect(searcher, query);
+                collected = true;
+            }
+            return rescorer;
+        }
+    }
+
+    // Calcula la matriz de métricas (query x valor del parámetro), repartiendo el trabajo entre los hilos.
+    // candidates, si no es null, guarda los candidatos de -rescore entre llamadas
+    private static double[][] computeScoreMatrix(SweepContext context, List<QuerySet.Compiled> queries,
+                                                 Query[] parsedQueries,
+                                                 IndexSearcher[] searchers,
+                                                 ResolvedQrels judgments, int cut, String metric,
+                                                 double[][][] metricMatrix, Candidates[] candidates)
+            throws IOException, InterruptedException, ExecutionException {
+        double[][] scoreMatrix = new double[queries.size()][searchers.length];
+        List<SweepTask> tasks = new ArrayList<>();
+        // con -cuts cada ranking se recupera hasta el mayor corte y sirve para todas las métricas
+        Evaluator evaluator = context.evaluator();
+        int depth = evaluator == null ? cut : Math.max(cut, evaluator.maxCutoff());
+
+        int row = 0;
+        for (QuerySet.Compiled query : queries) {
+            final int r = row++;
+            ResolvedQrels.Judgments thisRelevances = judgments.forQuery(query.id());
+
+            if (context.rescore()) {
+                // una sola pasada por el índice por query; cada valor del parámetro se puntúa en memoria
+                Candidates queryCandidates = candidates != null ? candidates[r] : new Candidates();
+                tasks.add(() -> {
+                    for (int c = 0; c < searchers.length; c++) {
+                        TopDocs cached = context.cached(searchers[c], parsedQueries[r], depth);
+                        ScoreDoc[] hits;
+                        if (cached != null) {
+                            hits = cached.scoreDocs;
+                        } else {
+                            // los candidatos sólo se recogen si algún valor no está en la caché
+                            CandidateRescorer rescorer = queryCandidates.get(searchers[0], parsedQueries[r]);
+                            TopDocs topDocs = rescorer != null ?
+                                    new TopDocs(new TotalHits(rescorer.numCandidates(), TotalHits.Relation.EQUAL_TO),
+                                            rescorer.topDocs(searchers[c].getSimilarity(), depth)) :
+                                    searchers[c].search(parsedQueries[r], depth);
+                            context.store(searchers[c], parsedQueries[r], depth, topDocs);
+                            hits = topDocs.scoreDocs;
+                        }
+                        scoreMatrix[r][c] = evaluateCell(hits, thisRelevances, c == 0, cut, metric);
+                        if (metricMatrix != null)
+                            metricMatrix[r][c] = evaluator.evaluate(hits, thisRelevances);
+                    }
+                });
+            } else {
+                for (int column = 0; column < searchers.length; column++) {
+                    final int c = column;
+                    tasks.add(() -> {
+                        // Ranking de documentos  al hacer una búsqueda
+                        TopDocs topDocs = context.search(searchers[c], parsedQueries[r], depth); // sacamos los top docs para las métricas
+                        scoreMatrix[r][c] = evaluateCell(topDocs.scoreDocs, thisRelevances, c == 0, cut, metric);
+                        if (metricMatrix != null)
+                            metricMatrix[r][c] = evaluator.evaluate(topDocs.scoreDocs, thisRelevances);
+                    });
+                }
+            }
+        }
+
+        runTasks(tasks, context.threads());
+        return scoreMatrix;
+    }
+
+    // Tarea del barrido de parámetros que rellena una o varias celdas de la matriz
+    private interface SweepTask {
+        void run() throws IOException;
+    }
+
+    private static void runTasks(List<SweepTask> tasks, int threads)
+            throws IOException, InterruptedException, ExecutionException {
+        if (threads <= 1) {
+            for (SweepTask task : tasks)
+                task.run();
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (SweepTask task : tasks) {
+                futures.add(executor.submit(() -> {
+                    task.run();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // CSV con todas las métricas en todos los cortes: una fila por query y valor del parámetro, y una fila de
+    // promedios por valor que no cuenta las queries sin documentos relevantes (0 si ninguna los tiene)
+    private static void writeMetricsCsv(File csvFile, Evaluator evaluator, List<QuerySet.Compiled> queries,
+                                        ResolvedQrels judgments, String[] paramLabels, String paramName,
+                                        double[][][] metricMatrix) throws FileNotFoundException {
+        try (PrintWriter writer = new PrintWriter(csvFile)) {
+            writer.print("query," + paramName);
+            for (String column : evaluator.header())
+                writer.print("," + column);
+            writer.print(System.lineSeparator());
+
+            int row = 0;
+            int numRelevantQueries = 0;
+            double[][] sums = new double[paramLabels.length][evaluator.size()];
+            for (QuerySet.Compiled query : queries) {
+                boolean relevant = judgments.forQuery(query.id()).numRelevant() > 0;
+                if (relevant)
+                    numRelevantQueries++;
+                for (int column = 0; column < paramLabels.length; column++) {
+                    writer.print(query.id() + "," + paramLabels[column]);
+                    for (int m = 0; m < evaluator.size(); m++) {
+                        writer.print("," + metricMatrix[row][column][m]);
+                        sums[column][m] += metricMatrix[row][column][m];
+                    }
+                    writer.print(System.lineSeparator());
+                }
+                row++;
+            }
+
+            for (int column = 0; column < paramLabels.length; column++) {
+                writer.print("Promedios:," + paramLabels[column]);
+                for (int m = 0; m < evaluator.size(); m++)
+                    writer.print("," + (numRelevantQueries == 0 ? 0 : sums[column][m] / numRelevantQueries));
+                writer.print(System.lineSeparator());
+            }
+        }
+    }
+
+    // Métrica de una query con un valor del parámetro; las queries sin documentos relevantes puntúan 0 en la
+    // primera columna, que es donde se descuentan del promedio
+    private static double evaluateCell(ScoreDoc[] hits, ResolvedQrels.Judgments thisRelevances, boolean firstColumn,
+                                       int cut, String metric) {
+        List<ScoreDoc> scoreDocs = List.of(hits.length > cut ? Arrays.copyOf(hits, cut) : hits);
+        int relevantQuery = thisRelevances.numRelevant();
+
+        if (relevantQuery == 0 && firstColumn)
+            return 0;
+        return computeMetric(metric, scoreDocs, thisRelevances, cut, relevantQuery);
+    }
+
+    static double computeMetric(String metric, List<ScoreDoc> scoreDocs,
+                                ResolvedQrels.Judgments thisRelevances, int cut, int relevantQuery) {
+        double score = 0;
+        switch (metric) {
+            case "P":
+                score = calculatePrecision(scoreDocs, thisRelevances, cut);
+                break;
+            case "R":
+                score = calculateRecall(scoreDocs, thisRelevances, relevantQuery);
+                break;
+            case "MAP":
+                score = calculateAP(scoreDocs, thisRelevances, relevantQuery);
+                break;
+            case "MRR":
+                score = calculateRR(scoreDocs, thisRelevances);
+                break;
+            default:
+                System.err.println("Valor de métrica no válido: " + metric);
+                System.exit(1);
+                break;
+        }
+        return score;
+    }
+
+    private static double calculatePrecision(List<ScoreDoc> scoreDocs, ResolvedQrels.Judgments thisRelevances,
+                                             int cut){
+        return (getRelevantN(scoreDocs, thisRelevances) / cut);
     }
 
-    private static double calculateRecall(List<ScoreDoc> scoreDocs, IndexSearcher searcher,
-                                          Map<String, Integer> thisRelevances, int relevantQuery){
-        return (getRelevantN(scoreDocs, searcher, thisRelevances) / relevantQuery);
+    private static double calculateRecall(List<ScoreDoc> scoreDocs, ResolvedQrels.Judgments thisRelevances,
+                                          int relevantQuery){
+        return (getRelevantN(scoreDocs, thisRelevances) / relevantQuery);
     }
 
-    private static double getRelevantN(List<ScoreDoc> scoreDocs, IndexSearcher searcher,
-                                       Map<String, Integer> thisRelevances){
+    private static double getRelevantN(List<ScoreDoc> scoreDocs, ResolvedQrels.Judgments thisRelevances){
         int relevantN = 0;
 
-        for(ScoreDoc scoreDoc : scoreDocs) {        
+        for(ScoreDoc scoreDoc : scoreDocs) {
             // iteramos por el ranking
-            // buscamos cada documento de topDocs
-            Document doc = null;
-            try {
-                doc = searcher.doc(scoreDoc.doc);
-            } catch (IOException e) {
-                System.err.println("Error de E/S: " + e.getMessage());
-                System.exit(1);
-            }
-            String corpusID = doc.get("id");
-            int relevance = thisRelevances.getOrDefault(corpusID, 0);
+            int relevance = thisRelevances.grade(scoreDoc.doc);
 
             if(relevance > 0) {
                 relevantN++;
@@ -426,8 +909,8 @@ public class TrainingTestTrecCovid {
         return relevantN;
     }
 
-    private static double calculateAP(List<ScoreDoc> scoreDocs, IndexSearcher searcher,
-                                          Map<String, Integer> thisRelevances, int relevantQuery){
+    private static double calculateAP(List<ScoreDoc> scoreDocs, ResolvedQrels.Judgments thisRelevances,
+                                      int relevantQuery){
         int rankingPos = 0;
         double sumAccuracies = 0;
         int relevantN = 0;
@@ -435,16 +918,7 @@ public class TrainingTestTrecCovid {
         for(ScoreDoc scoreDoc : scoreDocs) {        // iteramos por el ranking
             rankingPos++;
 
-            // buscamos cada documento de topDocs
-            Document doc = null;
-            try {
-                doc = searcher.doc(scoreDoc.doc);
-            } catch (IOException e) {
-                System.err.println("Error de E/S: " + e.getMessage());
-                System.exit(1);
-            }
-            String corpusID = doc.get("id");
-            int relevance = thisRelevances.getOrDefault(corpusID, 0);
+            int relevance = thisRelevances.grade(scoreDoc.doc);
 
             if(relevance > 0) {
                 relevantN++;
@@ -456,24 +930,14 @@ public class TrainingTestTrecCovid {
         return (sumAccuracies / relevantQuery);
     }
 
-    private static double calculateRR(List<ScoreDoc> scoreDocs, IndexSearcher searcher,
-                                      Map<String, Integer> thisRelevances) {
+    private static double calculateRR(List<ScoreDoc> scoreDocs, ResolvedQrels.Judgments thisRelevances) {
         int rankingPos = 0;
         int firstRelevant = 0;
 
         for(ScoreDoc scoreDoc : scoreDocs) {        // iteramos por el ranking
             rankingPos++;
 
-            // buscamos cada documento de topDocs
-            Document doc = null;
-            try {
-                doc = searcher.doc(scoreDoc.doc);
-            } catch (IOException e) {
-                System.err.println("Error de E/S: " + e.getMessage());
-                System.exit(1);
-            }
-            String corpusID = doc.get("id");
-            int relevance = thisRelevances.getOrDefault(corpusID, 0);
+            int relevance = thisRelevances.grade(scoreDoc.doc);
 
             if(firstRelevant == 0 && relevance > 0)
                 firstRelevant = rankingPos;
@@ -482,28 +946,62 @@ public class TrainingTestTrecCovid {
         return firstRelevant == 0? 0 : (double) 1 /firstRelevant;
     }
 
-    private static Map<Integer, Map<String, Integer>> readTsv(File test) {
-        Map<Integer, Map<String, Integer>> data = new HashMap<>();
-
-        try (BufferedReader tsvReader = new BufferedReader(new FileReader(test))) {
-            String line = tsvReader.readLine();      // ignoramos la línea de cabecera
-            while ((line = tsvReader.readLine()) != null) {
-                String[] lineItems = line.split("\t");
-                int queryId = tryParse(lineItems[0], "Error en el archivo de tests de relevancia.");
+    // Buscadores de un barrido de parámetros: todos comparten el IndexReader y el pool de hilos de búsqueda.
+    // Con -cuts lleva también el evaluador de todas las métricas, con -cache la caché de rankings en disco y con
+    // -resultcache la de memoria, que se consulta primero
+    private record SweepContext(TrecSearcherFactory searcherFactory, IndexReader reader, int threads,
+                                boolean rescore, Evaluator evaluator, RankingCache cache, ResultCache results) {
+
+        TopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+            TopDocs topDocs = cached(searcher, query, n);
+            if (topDocs == null) {
+                topDocs = searcher.search(query, n);
+                store(searcher, query, n, topDocs);
+            }
+            return topDocs;
+        }
 
-                Map<String, Integer> map = data.containsKey(queryId)? data.get(queryId) : new HashMap<>();
-                int relev = tryParse(lineItems[2], "Error en el archivo de tests de relevancia.");
-                map.put(lineItems[1], relev);
-                data.put(queryId, map);
+        TopDocs cached(IndexSearcher searcher, Query query, int n) throws IOException {
+            TopDocs topDocs = results != null ? results.get(searcher, query, n) : null;
+            if (topDocs == null && cache != null) {
+                topDocs = cache.get(cache.key(query, searcher, n));
+                if (topDocs != null && results != null)
+                    results.put(searcher, query, n, topDocs);
             }
-        } catch (FileNotFoundException e) {
-            System.err.println("No se ha encontrado el archivo de tests de relevancia.");
-            System.exit(1);
-        } catch (IOException e) {
-            System.err.println("Excepción de E/S al leer el archivo de tests de relevancia: " + e.getMessage());
-            System.exit(1);
+            return topDocs;
         }
-        return data;
+
+        void store(IndexSearcher searcher, Query query, int n, TopDocs topDocs) throws IOException {
+            if (results != null)
+                results.put(searcher, query, n, topDocs);
+            if (cache != null)
+                cache.put(cache.key(query, searcher, n), topDocs);
+        }
+
+        IndexSearcher newSearcher(String similarityType, double param) {
+            return newSearcher(similarityType, new double[] {param});
+        }
+
+        // point es {lambda}, {k1} con b = 0.75 o {k1, b}
+        IndexSearcher newSearcher(String similarityType, double[] point) {
+            IndexSearcher searcher = searcherFactory.newSearcher(reader);
+            float b = point.length > 1 ? (float) point[1] : 0.75f;
+            searcher.setSimilarity(
+                    similarityType.equals("JM")?
+                            new LMJelinekMercerSimilarity((float) point[0]) : new BM25Similarity((float) point[0], b)
+            );
+            return searcher;
+        }
+    }
+
+    private static double tryParseDouble(String text, String errorMessage) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            System.err.println(errorMessage);
+            System.exit(-1);
+        }
+        return 0;
     }
 
     private static int tryParse(String text, String errorMessage) {
@@ -0,0 +1,223 @@
+package practicari;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Evalúa un run file de TREC con los juicios de relevancia, sin abrir el índice.
+ *
+ * El run file se lee en streaming: sólo se guardan las líneas de la query actual, así que la memoria no
+ * depende del tamaño del fichero. Como trec_eval, el ranking de cada query se ordena por puntuación
+ * descendente (y por docid descendente en caso de empate), las queries del run sin juicios se ignoran, y las
+ * queries sin documentos relevantes no cuentan para los promedios, igual que en las demás herramientas.
+ */
+public class TrecEval {
+    private static final String testFilePath = "trec-covid" + File.separator + "qrels" + File.separator + "test.tsv";
+    private static final int[] DEFAULT_CUTS = {5, 10, 15, 20, 30, 100, 200, 500, 1000};
+    private static final String usage = "Uso: java TrecEval -run <fichero> [-qrels <test.tsv>] [-cuts <n1,n2,...>] [-q]\n" +
+            "-run <fichero>: run file de TREC (qid Q0 docid rank score tag), con las líneas de cada query juntas; " +
+            "puede estar comprimido con gzip (.gz).\n" +
+            "-qrels <fichero>: juicios de relevancia (por defecto " + testFilePath + ").\n" +
+            "-cuts <n1,n2,...>: cortes en los que se calculan las métricas.\n" +
+            "-q: escribe también las métricas de cada query.\n";
+
+    public static void main(String[] args) {
+        String runPath = null;
+        String qrelsPath = testFilePath;
+        int[] cuts = DEFAULT_CUTS;
+        boolean perQuery = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-run":
+                    runPath = args[++i];
+                    break;
+                case "-qrels":
+                    qrelsPath = args[++i];
+                    break;
+                case "-cuts":
+                    String[] cutArgs = args[++i].split(",");
+                    cuts = new int[cutArgs.length];
+                    for (int c = 0; c < cutArgs.length; c++) {
+                        cuts[c] = tryParseInt(cutArgs[c], "Argumento -cuts no válido.");
+                        if (cuts[c] < 1) {
+                            System.err.println("Opción -cuts debe ser una lista de enteros positivos.");
+                            System.exit(1);
+                        }
+                    }
+                    break;
+                case "-q":
+                    perQuery = true;
+                    break;
+                default:
+                    System.err.println("Opción desconocida: " + args[i]);
+                    System.err.print(usage);
+                    System.exit(1);
+            }
+        }
+        if (runPath == null) {
+            System.err.print(usage);
+            System.exit(1);
+        }
+
+        Qrels qrels = Qrels.read(new File(qrelsPath));
+        Evaluator evaluator = new Evaluator(cuts);
+        String[] header = evaluator.header();
+
+        try (BufferedReader runReader = openRun(runPath)) {
+            Set<Integer> seenQueries = new HashSet<>();
+            double[] sums = new double[evaluator.size()];
+            int numQueries = 0;
+            long numRetrieved = 0;
+            long numRelevant = 0;
+            long numRelevantRetrieved = 0;
+
+            // líneas de la query actual
+            int currentQuery = 0;
+            List<String> docIds = new ArrayList<>();
+            List<Float> scores = new ArrayList<>();
+
+            String line = runReader.readLine();
+            while (true) {
+                int queryId = 0;
+                String docId = null;
+                float score = 0;
+                if (line != null) {
+                    StringTokenizer tokens = new StringTokenizer(line);
+                    if (tokens.countTokens() < 6) {
+                        System.err.println("Línea del run file no válida: " + line);
+                        System.exit(1);
+                    }
+                    queryId = tryParseInt(tokens.nextToken(), "Id de query no válido en el run file: " + line);
+                    tokens.nextToken();     // Q0
+                    docId = tokens.nextToken();
+                    tokens.nextToken();     // rank: como trec_eval, el orden lo da la puntuación
+                    score = tryParseFloat(tokens.nextToken(), "Puntuación no válida en el run file: " + line);
+                }
+
+                // al cambiar de query (o acabar el fichero) se evalúa la anterior y se descartan sus líneas
+                if (!docIds.isEmpty() && (line == null || queryId != currentQuery)) {
+                    if (qrels.queryIndex(currentQuery) >= 0) {
+                        ResolvedQrels.Judgments judgments = ResolvedQrels.Judgments.forOrdinals(qrels, currentQuery);
+                        ScoreDoc[] hits = rank(qrels, docIds, scores);
+                        numRetrieved += hits.length;
+                        numRelevant += judgments.numRelevant();
+                        for (ScoreDoc hit : hits) {
+                            if (judgments.grade(hit.doc) > 0)
+                                numRelevantRetrieved++;
+                        }
+
+                        if (judgments.numRelevant() > 0) {
+                            double[] values = evaluator.evaluate(hits, judgments);
+                            numQueries++;
+                            for (int m = 0; m < values.length; m++)
+                                sums[m] += values[m];
+                            if (perQuery) {
+                                for (int m = 0; m < values.length; m++)
+                                    printMeasure(header[m], String.valueOf(currentQuery), values[m]);
+                            }
+                        }
+                    }
+                    docIds.clear();
+                    scores.clear();
+                }
+                if (line == null)
+                    break;
+
+                if (docIds.isEmpty()) {
+                    if (!seenQueries.add(queryId)) {
+                        System.err.println("El run file debe tener juntas las líneas de cada query: la query "
+                                + queryId + " aparece en varios bloques.");
+                        System.exit(1);
+                    }
+                    currentQuery = queryId;
+                }
+                docIds.add(docId);
+                scores.add(score);
+                line = runReader.readLine();
+            }
+
+            System.out.println(String.format("%-22s\tall\t%d", "num_q", numQueries));
+            System.out.println(String.format("%-22s\tall\t%d", "num_ret", numRetrieved));
+            System.out.println(String.format("%-22s\tall\t%d", "num_rel", numRelevant));
+            System.out.println(String.format("%-22s\tall\t%d", "num_rel_ret", numRelevantRetrieved));
+            for (int m = 0; m < header.length; m++)
+                printMeasure(header[m], "all", numQueries == 0 ? 0 : sums[m] / numQueries);
+        } catch (FileNotFoundException e) {
+            System.err.println("No se ha encontrado el run file: " + runPath);
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Excepción de E/S al leer el run file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Abre el run file, descomprimiéndolo si es un .gz (como los que escribe SearchEvalTrecCovid con -gzip)
+    private static BufferedReader openRun(String runPath) throws IOException {
+        InputStream in = new FileInputStream(runPath);
+        if (runPath.endsWith(ResultSink.GZIP_SUFFIX))
+            in = new GZIPInputStream(in, 1 << 16);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Ranking de una query del run: ordenado por puntuación descendente y docid descendente, y con cada
+     * documento identificado por su ordinal en los qrels (-1 si no está juzgado).
+     */
+    private static ScoreDoc[] rank(Qrels qrels, List<String> docIds, List<Float> scores) {
+        Integer[] order = new Integer[docIds.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Float.compare(scores.get(b), scores.get(a));
+            return cmp != 0 ? cmp : docIds.get(b).compareTo(docIds.get(a));
+        });
+
+        ScoreDoc[] hits = new ScoreDoc[order.length];
+        for (int i = 0; i < order.length; i++) {
+            int ord = qrels.docOrd(docIds.get(order[i]));
+            hits[i] = new ScoreDoc(ord < 0 ? -1 : ord, scores.get(order[i]));
+        }
+        return hits;
+    }
+
+    private static void printMeasure(String name, String queryId, double value) {
+        System.out.println(String.format(Locale.ROOT, "%-22s\t%s\t%.4f", name, queryId, value));
+    }
+
+    private static int tryParseInt(String n, String errMsg) {
+        try {
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            System.err.println("Error de parsing: " + errMsg);
+            System.exit(1);
+        }
+        return 0;
+    }
+
+    private static float tryParseFloat(String n, String errMsg) {
+        try {
+            return Float.parseFloat(n);
+        } catch (NumberFormatException e) {
+            System.err.println("Error de parsing: " + errMsg);
+            System.exit(1);
+        }
+        return 0;
+    }
+}
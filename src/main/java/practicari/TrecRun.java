@@ -0,0 +1,27 @@
+package practicari;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+
+/**
+ * Run files de TREC: una línea {@code qid Q0 docid rank score tag} por documento recuperado, que se pueden
+ * evaluar después con {@link TrecEval} (o con trec_eval) sin tener el índice abierto.
+ */
+public class TrecRun {
+    // Profundidad habitual de los run files de TREC
+    public static final int DEPTH = 1000;
+    private static final String ID_FIELD = "id";
+
+    // Líneas del run file para el ranking de una query
+    public static String format(int queryId, ScoreDoc[] hits, IndexReader reader, String tag) throws IOException {
+        String[] ids = HitFields.values(reader, hits, ID_FIELD, true);
+        StringBuilder lines = new StringBuilder(hits.length * 48);
+        for (int i = 0; i < hits.length; i++) {
+            lines.append(queryId).append(" Q0 ").append(ids[i]).append(' ').append(i + 1).append(' ')
+                    .append(hits[i].score).append(' ').append(tag).append(System.lineSeparator());
+        }
+        return lines.toString();
+    }
+}
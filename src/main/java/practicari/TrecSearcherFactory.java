@@ -0,0 +1,129 @@
+package practicari;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crea los {@link IndexSearcher} de las herramientas de búsqueda. Con más de un hilo, el buscador recorre
+ * los segmentos del índice en paralelo agrupándolos en slices de tamaño parecido, uno por hilo.
+ */
+public class TrecSearcherFactory extends SearcherFactory implements Closeable {
+    // slices más pequeños no compensan el coste de repartir la búsqueda entre hilos
+    private static final int MIN_DOCS_PER_SLICE = 10_000;
+    // mismos límites que la caché de queries que Lucene usa por defecto
+    private static final int MAX_CACHED_QUERIES = 1000;
+    private static final int DEFAULT_QUERY_CACHE_MB = 32;
+    // cachea cualquier cláusula que no puntúe desde la primera vez que se usa
+    private static final QueryCachingPolicy ALWAYS_CACHE = new QueryCachingPolicy() {
+        @Override
+        public void onUse(Query query) {}
+
+        @Override
+        public boolean shouldCache(Query query) {
+            return true;
+        }
+    };
+
+    private final int numThreads;
+    private final ExecutorService executor;
+    // caché de queries de Lucene compartida por los buscadores; sin configurar se usa la de Lucene por defecto
+    private boolean queryCacheConfigured;
+    private LRUQueryCache queryCache;
+    private QueryCachingPolicy queryCachingPolicy;
+
+    public TrecSearcherFactory(int numThreads) {
+        this.numThreads = numThreads;
+        if (numThreads > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(numThreads, r -> {
+                Thread thread = new Thread(r, "search-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Configura la caché de queries de Lucene de los buscadores que se creen a partir de ahora. Esta caché
+     * guarda los documentos que cumplen las cláusulas que no puntúan (filtros); las queries de ranking puntúan
+     * todas sus cláusulas, así que no la usan. Con maxMB 0 se desactiva, con -1 se usa el tamaño por defecto;
+     * la política es usage (cachea las cláusulas que se repiten, como hace Lucene) o always. Si no se indica
+     * ni tamaño ni política se deja la caché de Lucene por defecto.
+     */
+    public void configureQueryCache(int maxMB, String policy) {
+        if (maxMB < 0 && policy == null)
+            return;
+        queryCacheConfigured = true;
+        int mb = maxMB < 0 ? DEFAULT_QUERY_CACHE_MB : maxMB;
+        queryCache = mb == 0 ? null : new LRUQueryCache(MAX_CACHED_QUERIES, mb * 1024L * 1024L);
+        queryCachingPolicy = "always".equals(policy) ?
+                ALWAYS_CACHE : new UsageTrackingQueryCachingPolicy();
+    }
+
+    public static boolean isQueryCachePolicy(String policy) {
+        return policy.equals("usage") || policy.equals("always");
+    }
+
+    // Aciertos, fallos y tamaño de la caché de queries configurada, o null si no hay ninguna configurada
+    public String queryCacheStats() {
+        if (queryCache == null)
+            return null;
+        return queryCache.getHitCount() + " aciertos, " + queryCache.getMissCount() + " fallos, "
+                + queryCache.getCacheCount() + " cacheadas, " + queryCache.getEvictionCount() + " descartes, "
+                + String.format("%.1f", queryCache.ramBytesUsed() / 1024.0 / 1024.0) + " MB";
+    }
+
+    public IndexSearcher newSearcher(IndexReader reader) {
+        return newSearcher(reader, null);
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+        IndexSearcher searcher = executor == null ? new IndexSearcher(reader) : concurrentSearcher(reader);
+        if (queryCacheConfigured) {
+            searcher.setQueryCache(queryCache);
+            searcher.setQueryCachingPolicy(queryCachingPolicy);
+        }
+        return searcher;
+    }
+
+    private IndexSearcher concurrentSearcher(IndexReader reader) {
+        final int threads = numThreads;
+        return new IndexSearcher(reader, executor) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                int maxDoc = 0;
+                for (LeafReaderContext leaf : leaves)
+                    maxDoc += leaf.reader().maxDoc();
+                // repartimos los documentos a partes iguales entre los hilos
+                int maxDocsPerSlice = Math.max(MIN_DOCS_PER_SLICE, (maxDoc + threads - 1) / threads);
+                int maxSegmentsPerSlice = Math.max(1, (leaves.size() + threads - 1) / threads);
+                return slices(leaves, maxDocsPerSlice, maxSegmentsPerSlice);
+            }
+        };
+    }
+
+    public int numThreads() {
+        return numThreads;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null)
+            executor.shutdown();
+    }
+}